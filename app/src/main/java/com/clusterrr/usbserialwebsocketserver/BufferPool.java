@@ -0,0 +1,81 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Bounded pool of reference-counted heap buffers. All buffers are allocated up front,
+// so acquire() and release() never allocate once the pool is warm.
+public class BufferPool {
+    private final String mName;
+    private final int mBufferSize;
+    private final ArrayBlockingQueue<PooledBuffer> mFree;
+    // Filled in the constructor and read-only afterwards, so lookups need no locking
+    private final IdentityHashMap<ByteBuffer, PooledBuffer> mOwners;
+    private final AtomicInteger mMisses = new AtomicInteger();
+
+    public BufferPool(String name, int count, int bufferSize) {
+        mName = name;
+        mBufferSize = bufferSize;
+        mFree = new ArrayBlockingQueue<>(count);
+        mOwners = new IdentityHashMap<>(count);
+        for (int i = 0; i < count; i++) {
+            PooledBuffer buffer = new PooledBuffer(this, ByteBuffer.allocate(bufferSize));
+            mOwners.put(buffer.buffer(), buffer);
+            mFree.add(buffer);
+        }
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    // Never blocks: when the pool is exhausted an unpooled buffer is handed out instead
+    public PooledBuffer acquire() {
+        PooledBuffer buffer = mFree.poll();
+        if (buffer == null) {
+            int misses = mMisses.incrementAndGet();
+            if (BuildConfig.DEBUG && (misses & (misses - 1)) == 0) {
+                Log.w(UsbSerialWebsocketService.TAG, "Buffer pool '" + mName + "' exhausted (" + misses + " misses)");
+                dumpLeaks();
+            }
+            buffer = new PooledBuffer(null, ByteBuffer.allocate(mBufferSize));
+        }
+        buffer.onAcquire();
+        return buffer;
+    }
+
+    // Returns the pooled owner of a buffer previously handed out by this pool, or null
+    public PooledBuffer find(ByteBuffer buffer) {
+        return mOwners.get(buffer);
+    }
+
+    public int getFreeCount() {
+        return mFree.size();
+    }
+
+    public int getMisses() {
+        return mMisses.get();
+    }
+
+    void recycle(PooledBuffer buffer) {
+        mFree.offer(buffer);
+    }
+
+    // Logs every buffer that is still referenced. Only meaningful in debug builds,
+    // where buffers remember who acquired them.
+    public int dumpLeaks() {
+        int leaks = 0;
+        for (PooledBuffer buffer : mOwners.values()) {
+            if (buffer.refCount() > 0) {
+                leaks++;
+                if (BuildConfig.DEBUG)
+                    Log.w(UsbSerialWebsocketService.TAG, "Buffer pool '" + mName + "': buffer not released", buffer.getAcquiredAt());
+            }
+        }
+        return leaks;
+    }
+}
@@ -0,0 +1,61 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import android.util.Log;
+
+import org.java_websocket.WebSocket;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Server notifications are sent as binary frames holding a JSON object with an "event"
+// field. Plain clients get the serial data as text frames, so the two never mix. Envelope
+// clients get it in binary frames too, told apart by the first byte, see Envelope.
+public class ClientEvents {
+    final static String WRITE_REJECTED = "write_rejected";
+    final static String WRITE_PROGRESS = "write_progress";
+    final static String WRITE_FAILED = "write_failed";
+    final static String TRACE = "trace";
+    final static String SESSION = "session";
+    final static String GAP = "gap";
+    final static String TRIGGER = "trigger";
+    final static String TRIGGERS = "triggers";
+    final static String ERROR = "error";
+    final static String MODBUS = "modbus";
+    final static String MODBUS_ERROR = "modbus_error";
+    final static String UPLOAD_READY = "upload_ready";
+    final static String UPLOAD_ACK = "upload_ack";
+    final static String UPLOAD_PROGRESS = "upload_progress";
+    final static String UPLOAD_DONE = "upload_done";
+    final static String UPLOAD_ERROR = "upload_error";
+    final static String TELEMETRY = "telemetry";
+    final static String TELEMETRY_FORMATS = "telemetry_formats";
+
+    private ClientEvents() {
+    }
+
+    public static JSONObject create(String event) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("event", event);
+        } catch (JSONException e) {
+            // Can't happen with a non-null key
+        }
+        return json;
+    }
+
+    public static void send(WebSocket conn, JSONObject event) {
+        send(conn, event.toString());
+    }
+
+    // For events too big to build as a JSONObject first
+    public static void send(WebSocket conn, String event) {
+        if (conn == null || !conn.isOpen()) return;
+        try {
+            conn.send(ByteBuffer.wrap(event.getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            Log.w(UsbSerialWebsocketService.TAG, "Can't send event to client: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+// Per-connection state, attached to each WebSocket
+public class ClientState {
+    final ResourceDescriptor mDescriptor;
+    // Serial data goes to this client in envelopes instead of text frames
+    final boolean mEnvelope;
+    SerialWriteScheduler.Client mWriter = null;
+    String mSession = null;
+    FirmwareUpload mUpload = null;
+
+    public ClientState(ResourceDescriptor descriptor) {
+        mDescriptor = descriptor;
+        mEnvelope = descriptor.getBoolean("envelope", false);
+    }
+
+    // Control connections get no serial data and their messages are commands
+    public boolean isControl() {
+        return mDescriptor.getPath().equals(ControlHandler.PATH);
+    }
+
+    // Modbus connections get no serial data either, their messages are Modbus requests
+    public boolean isModbus() {
+        return mDescriptor.getPath().equals(ModbusGateway.PATH);
+    }
+
+    // Upload connections send a file to the device, see FirmwareUpload
+    public boolean isUpload() {
+        return mDescriptor.getPath().equals(FirmwareUpload.PATH);
+    }
+
+    // Telemetry connections get the parsed values instead of the serial data, see TelemetryConflator
+    public boolean isTelemetry() {
+        return mDescriptor.getPath().equals(TelemetryConflator.PATH);
+    }
+}
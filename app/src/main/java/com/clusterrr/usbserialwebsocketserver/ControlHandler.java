@@ -0,0 +1,144 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import android.util.Log;
+
+import org.java_websocket.WebSocket;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.List;
+
+// Commands from clients connected to /control, one JSON object per text message,
+// e.g. {"command": "dump_trace"}. Replies are sent as events, like all server notifications.
+public class ControlHandler {
+    final static String PATH = "/control";
+    final static String COMMAND_DUMP_TRACE = "dump_trace";
+    final static String COMMAND_GET_TRIGGERS = "get_triggers";
+    final static String COMMAND_SET_TRIGGERS = "set_triggers";
+    final static String COMMAND_GET_TELEMETRY = "get_telemetry";
+    final static String COMMAND_SET_TELEMETRY = "set_telemetry";
+
+    private final UsbSerialWebsocketService mUsbSerialWebsocketService;
+
+    public ControlHandler(UsbSerialWebsocketService UsbSerialWebsocketService) {
+        mUsbSerialWebsocketService = UsbSerialWebsocketService;
+    }
+
+    public void handle(WebSocket conn, String message) {
+        JSONObject json;
+        String command;
+        try {
+            json = new JSONObject(message);
+            command = json.getString("command");
+        } catch (JSONException e) {
+            sendError(conn, "Invalid command: " + e.getMessage());
+            return;
+        }
+        switch (command) {
+            case COMMAND_DUMP_TRACE:
+                dumpTrace(conn);
+                break;
+            case COMMAND_GET_TRIGGERS:
+                sendTriggers(conn);
+                break;
+            case COMMAND_SET_TRIGGERS:
+                setTriggers(conn, json);
+                break;
+            case COMMAND_GET_TELEMETRY:
+                sendTelemetryFormats(conn);
+                break;
+            case COMMAND_SET_TELEMETRY:
+                setTelemetryFormats(conn, json);
+                break;
+            default:
+                sendError(conn, "Unknown command: " + command);
+                break;
+        }
+    }
+
+    // The reply is a complete Chrome trace, it can be saved and opened in Perfetto as is
+    private void dumpTrace(WebSocket conn) {
+        StringBuilder trace = new StringBuilder(256 * 1024);
+        trace.append("{\"event\":\"").append(ClientEvents.TRACE).append("\",");
+        try {
+            Tracer.dump(trace);
+        } catch (IOException e) {
+            // StringBuilder doesn't throw
+        }
+        trace.append('}');
+        Log.i(UsbSerialWebsocketService.TAG, "Trace sent to " + conn.getRemoteSocketAddress() + ", " + trace.length() + " bytes");
+        ClientEvents.send(conn, trace.toString());
+    }
+
+    // {"command": "set_triggers", "rules": [...]} replaces all rules, an empty list removes them
+    private void setTriggers(WebSocket conn, JSONObject json) {
+        TriggerEngine triggers;
+        try {
+            triggers = TriggerEngine.fromJson(json.getJSONArray("rules"));
+        } catch (JSONException e) {
+            sendError(conn, "Invalid rules: " + e.getMessage());
+            return;
+        }
+        try {
+            mUsbSerialWebsocketService.setTriggers(triggers);
+        } catch (IOException e) {
+            sendError(conn, "Can't save rules: " + e.getMessage());
+            return;
+        }
+        Log.i(UsbSerialWebsocketService.TAG, "Trigger rules updated by " + conn.getRemoteSocketAddress());
+        sendTriggers(conn);
+    }
+
+    private void sendTriggers(WebSocket conn) {
+        TriggerEngine triggers = mUsbSerialWebsocketService.getTriggers();
+        JSONObject event = ClientEvents.create(ClientEvents.TRIGGERS);
+        try {
+            event.put("rules", triggers != null ? triggers.toJson() : new JSONArray());
+        } catch (JSONException e) {
+            // Can't happen with an array
+        }
+        ClientEvents.send(conn, event);
+    }
+
+    // {"command": "set_telemetry", "formats": [...]} replaces all formats, see TelemetryFormat
+    private void setTelemetryFormats(WebSocket conn, JSONObject json) {
+        List<TelemetryFormat> formats;
+        try {
+            formats = TelemetryConflator.fromJson(json.getJSONArray("formats"));
+        } catch (JSONException e) {
+            sendError(conn, "Invalid formats: " + e.getMessage());
+            return;
+        }
+        try {
+            mUsbSerialWebsocketService.setTelemetryFormats(formats);
+        } catch (IOException e) {
+            sendError(conn, "Can't save formats: " + e.getMessage());
+            return;
+        }
+        Log.i(UsbSerialWebsocketService.TAG, "Telemetry formats updated by " + conn.getRemoteSocketAddress());
+        sendTelemetryFormats(conn);
+    }
+
+    private void sendTelemetryFormats(WebSocket conn) {
+        TelemetryConflator telemetry = mUsbSerialWebsocketService.getTelemetry();
+        JSONObject event = ClientEvents.create(ClientEvents.TELEMETRY_FORMATS);
+        try {
+            event.put("formats", telemetry != null ? TelemetryConflator.toJson(telemetry.getFormats()) : new JSONArray());
+        } catch (JSONException e) {
+            // Can't happen with an array
+        }
+        ClientEvents.send(conn, event);
+    }
+
+    static void sendError(WebSocket conn, String error) {
+        JSONObject event = ClientEvents.create(ClientEvents.ERROR);
+        try {
+            event.put("error", error);
+        } catch (JSONException e) {
+            // Can't happen with strings
+        }
+        ClientEvents.send(conn, event);
+    }
+}
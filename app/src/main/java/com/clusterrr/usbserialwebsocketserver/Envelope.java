@@ -0,0 +1,52 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import java.nio.ByteBuffer;
+
+// Serial data for clients that connected with ?envelope=1. Each chunk read from the port
+// goes out as a binary frame holding a 17 byte header and the raw bytes:
+//   u8 type (0 = data), u64 sequence number, u64 receive time in microseconds since the epoch
+// all big endian. Events are binary frames too, but they are JSON and start with '{'.
+public class Envelope {
+    final static byte TYPE_DATA = 0;
+    final static int HEADER_SIZE = 17;
+    final static int MAX_FRAME_HEADER_SIZE = 4; // payload is always shorter than 64K
+
+    // Wall clock at the time the monotonic clock read 0, so timestamps are comparable
+    // between devices but never jump when the clock is set
+    private final static long EPOCH_OFFSET_MICROS = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+
+    private Envelope() {
+    }
+
+    public static long nowMicros() {
+        return EPOCH_OFFSET_MICROS + System.nanoTime() / 1000;
+    }
+
+    public static int maxFrameSize(int len) {
+        return MAX_FRAME_HEADER_SIZE + HEADER_SIZE + len;
+    }
+
+    // Writes the WebSocket and envelope headers for a chunk of len bytes into dst,
+    // the caller puts the data right after them
+    public static void putHeader(ByteBuffer dst, long seq, long timestamp, int len) {
+        int payload = HEADER_SIZE + len;
+        dst.put((byte) 0x82); // FIN + binary
+        if (payload < 126) {
+            dst.put((byte) payload);
+        } else {
+            dst.put((byte) 126);
+            dst.put((byte) (payload >> 8));
+            dst.put((byte) payload);
+        }
+        dst.put(TYPE_DATA);
+        dst.putLong(seq);
+        dst.putLong(timestamp);
+    }
+
+    // Complete frame in dst, flipped and ready to be queued
+    public static void encode(long seq, long timestamp, byte[] data, int offset, int len, ByteBuffer dst) {
+        putHeader(dst, seq, timestamp, len);
+        dst.put(data, offset, len);
+        dst.flip();
+    }
+}
@@ -0,0 +1,488 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import android.util.Log;
+
+import org.java_websocket.WebSocket;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Sends a file, typically a firmware image, to the device for a client connected to
+//   /upload?protocol=ymodem&name=app.bin&size=123456
+// The client streams the file as binary messages and the protocol runs right here next to
+// the port: blocks are built, sent, acknowledged by the device and retried without a round
+// trip to the client. The file is never held whole, the client may be at most "window" bytes
+// ahead of what was taken from it, and upload_ack events tell it how far that is.
+// While the upload runs the other clients' writes wait in the scheduler.
+//
+// protocol: xmodem  XMODEM-1K, 128 byte blocks with a checksum if the receiver starts with NAK
+//           ymodem  YMODEM batch of this one file
+//           raw     the bytes as they are, paced to "rate" bytes per second, the line rate by default
+// The data ends after "size" bytes, or with a {"end": true} text message without a size.
+// {"cancel": true} or closing the connection aborts the upload.
+public class FirmwareUpload extends Thread {
+    final static String PATH = "/upload";
+    final static String PROTOCOL_XMODEM = "xmodem";
+    final static String PROTOCOL_YMODEM = "ymodem";
+    final static String PROTOCOL_RAW = "raw";
+
+    final static int DEFAULT_WINDOW = 64 * 1024;
+    final static int MIN_WINDOW = 4 * 1024;
+    final static int MAX_WINDOW = 1024 * 1024;
+    final static int PROGRESS_INTERVAL = 250; // ms
+    final static int INPUT_SIZE = 256;
+
+    final static byte SOH = 0x01;
+    final static byte STX = 0x02;
+    final static byte EOT = 0x04;
+    final static byte ACK = 0x06;
+    final static byte NAK = 0x15;
+    final static byte CAN = 0x18;
+    final static byte CRC_REQUEST = 'C';
+    final static byte PAD = 0x1A; // CP/M end of file
+    final static int BLOCK_SIZE = 1024;
+    final static int SHORT_BLOCK_SIZE = 128;
+    final static int START_TIMEOUT = 60 * 1000; // ms, for the receiver to ask for the first block
+    final static int REPLY_TIMEOUT = 10 * 1000; // ms, once the block is on the wire
+    final static int CANCEL_TIMEOUT = 1000; // ms, between the two CANs that cancel
+    final static int MAX_RETRIES = 10;
+
+    final static int CHUNK_MILLIS = 20;
+    final static int MIN_CHUNK_SIZE = 16;
+    final static int MAX_CHUNK_SIZE = 4096;
+
+    final static String ERROR_INVALID_REQUEST = "invalid_request";
+    final static String ERROR_BUSY = "busy";
+    final static String ERROR_TIMEOUT = "timeout";
+    final static String ERROR_CANCELLED = "cancelled";
+    final static String ERROR_DEVICE_CANCELLED = "device_cancelled";
+    final static String ERROR_WINDOW_EXCEEDED = "window_exceeded";
+    final static String ERROR_WRITE_FAILED = "write_failed";
+
+    private static class UploadException extends IOException {
+        final String mError;
+
+        UploadException(String error, String message) {
+            super(message);
+            mError = error;
+        }
+    }
+
+    private final UsbSerialWebsocketService mUsbSerialWebsocketService;
+    private final WebSocket mConn;
+    private final String mProtocol;
+    private final String mName;
+    private final long mSize; // -1 if unknown
+    private final int mRate;
+    private final SerialFormat mFormat;
+
+    // What the client sent and the engine didn't take yet, guarded by itself
+    private final byte[] mWindow;
+    private int mWindowHead = 0;
+    private int mWindowCount = 0;
+    private long mReceived = 0;
+    private boolean mEnded = false;
+    private volatile UploadException mAbort = null;
+
+    // What the device sent, guarded by itself
+    private final byte[] mInput = new byte[INPUT_SIZE];
+    private int mInputHead = 0;
+    private int mInputCount = 0;
+    private volatile boolean mListening = false;
+
+    // Engine thread only
+    private final byte[] mBlock = new byte[MAX_CHUNK_SIZE];
+    private final byte[] mFrame = new byte[3 + BLOCK_SIZE + 2];
+    private long mConsumed = 0;
+    private long mAcked = 0;
+    private long mSent = 0;
+    private int mRetries = 0;
+    private long mStartTime = 0;
+    private long mLastProgress = 0;
+
+    public FirmwareUpload(UsbSerialWebsocketService UsbSerialWebsocketService, WebSocket conn, ResourceDescriptor descriptor) {
+        super("FirmwareUpload");
+        mUsbSerialWebsocketService = UsbSerialWebsocketService;
+        mConn = conn;
+        mFormat = UsbSerialWebsocketService.mSerialFormat;
+        String protocol = descriptor.get("protocol");
+        mProtocol = protocol == null ? PROTOCOL_XMODEM : protocol;
+        if (!mProtocol.equals(PROTOCOL_XMODEM) && !mProtocol.equals(PROTOCOL_YMODEM) && !mProtocol.equals(PROTOCOL_RAW))
+            throw new IllegalArgumentException("Unknown protocol " + mProtocol);
+        String name = descriptor.get("name");
+        mName = name == null || name.isEmpty() ? "firmware.bin" : name;
+        if (mName.getBytes(StandardCharsets.UTF_8).length > SHORT_BLOCK_SIZE - 24)
+            throw new IllegalArgumentException("Name too long");
+        mSize = descriptor.getLong("size", -1);
+        int lineRate = mFormat.bytesPerSecond();
+        int rate = descriptor.getInt("rate", 0);
+        mRate = rate > 0 ? Math.min(rate, lineRate) : lineRate;
+        int window = descriptor.getInt("window", DEFAULT_WINDOW);
+        mWindow = new byte[Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, window))];
+        if (mSize == 0)
+            mEnded = true;
+    }
+
+    // Called on the WebSocket thread with the client's data
+    public void offer(ByteBuffer data) {
+        int len = data.remaining();
+        synchronized (mWindow) {
+            if (mEnded || mAbort != null) return;
+            if (mWindowCount + len > mWindow.length) {
+                abort(new UploadException(ERROR_WINDOW_EXCEEDED, "More than " + mWindow.length + " bytes not acknowledged yet"));
+                return;
+            }
+            if (mSize >= 0 && mReceived + len > mSize) {
+                abort(new UploadException(ERROR_INVALID_REQUEST, "More data than the size of " + mSize + " bytes"));
+                return;
+            }
+            int tail = (mWindowHead + mWindowCount) % mWindow.length;
+            int first = Math.min(len, mWindow.length - tail);
+            data.get(mWindow, tail, first);
+            data.get(mWindow, 0, len - first);
+            mWindowCount += len;
+            mReceived += len;
+            if (mReceived == mSize)
+                mEnded = true;
+            mWindow.notifyAll();
+        }
+    }
+
+    // Called on the WebSocket thread for the client's text messages
+    public void onMessage(String message) {
+        try {
+            JSONObject json = new JSONObject(message);
+            if (json.optBoolean("cancel")) {
+                abort(new UploadException(ERROR_CANCELLED, "Cancelled by the client"));
+            } else if (json.optBoolean("end")) {
+                synchronized (mWindow) {
+                    mEnded = true;
+                    mWindow.notifyAll();
+                }
+            }
+        } catch (JSONException e) {
+            Log.w(UsbSerialWebsocketService.TAG, "Invalid upload command: " + e.getMessage());
+        }
+    }
+
+    // Called on the serial reader thread with everything read from the port
+    public void onSerialData(byte[] data, int len) {
+        if (!mListening) return;
+        synchronized (mInput) {
+            for (int i = 0; i < len && mInputCount < mInput.length; i++) {
+                mInput[(mInputHead + mInputCount) % mInput.length] = data[i];
+                mInputCount++;
+            }
+            mInput.notifyAll();
+        }
+    }
+
+    // Called when the connection closes, does nothing once the upload is done
+    public void abort(String error, String message) {
+        abort(new UploadException(error, message));
+    }
+
+    private void abort(UploadException reason) {
+        synchronized (mWindow) {
+            if (mAbort == null)
+                mAbort = reason;
+            mWindow.notifyAll();
+        }
+        synchronized (mInput) {
+            mInput.notifyAll();
+        }
+    }
+
+    public void close() {
+        abort(ERROR_CANCELLED, "Server stopped");
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        SerialWriteScheduler scheduler = mUsbSerialWebsocketService.getWriteScheduler();
+        mStartTime = System.currentTimeMillis();
+        try {
+            if (scheduler != null)
+                scheduler.hold(true);
+            Log.i(UsbSerialWebsocketService.TAG, "Uploading " + mName + (mSize >= 0 ? ", " + mSize + " bytes" : "") + " with " + mProtocol);
+            JSONObject ready = ClientEvents.create(ClientEvents.UPLOAD_READY);
+            ready.put("protocol", mProtocol);
+            ready.put("window", mWindow.length);
+            ClientEvents.send(mConn, ready);
+            mListening = true;
+            if (mProtocol.equals(PROTOCOL_RAW))
+                sendRaw();
+            else
+                sendXmodem(mProtocol.equals(PROTOCOL_YMODEM));
+            progress(true);
+            long millis = System.currentTimeMillis() - mStartTime;
+            JSONObject done = ClientEvents.create(ClientEvents.UPLOAD_DONE);
+            done.put("bytes", mSent);
+            done.put("retries", mRetries);
+            done.put("millis", millis);
+            ClientEvents.send(mConn, done);
+            Log.i(UsbSerialWebsocketService.TAG, "Upload of " + mName + " done, " + mSent + " bytes in " + millis + " ms, " + mRetries + " retries");
+        } catch (UploadException e) {
+            fail(e.mError, e.getMessage());
+        } catch (IOException e) {
+            fail(ERROR_WRITE_FAILED, e.getMessage());
+        } catch (JSONException e) {
+            // Can't happen with strings and numbers
+        } catch (InterruptedException e) {
+            // Stopping
+        } finally {
+            mListening = false;
+            if (scheduler != null) {
+                try {
+                    scheduler.hold(false);
+                } catch (InterruptedException e) {
+                    // Releasing doesn't wait
+                }
+            }
+            mUsbSerialWebsocketService.endUpload(this);
+        }
+        mConn.close();
+    }
+
+    private void fail(String error, String message) {
+        Log.w(UsbSerialWebsocketService.TAG, "Upload of " + mName + " failed after " + mSent + " bytes: " + message);
+        // Don't leave the receiver waiting for the next block
+        if (!mProtocol.equals(PROTOCOL_RAW) && !error.equals(ERROR_DEVICE_CANCELLED)) {
+            Arrays.fill(mFrame, 0, 3, CAN);
+            try {
+                mUsbSerialWebsocketService.writeSerialPort(mFrame, 0, 3);
+            } catch (IOException e) {
+                // Nothing more to do
+            }
+        }
+        sendError(mConn, error, message, mSent);
+    }
+
+    static void sendError(WebSocket conn, String error, String message, long sent) {
+        JSONObject event = ClientEvents.create(ClientEvents.UPLOAD_ERROR);
+        try {
+            event.put("error", error);
+            event.put("message", message);
+            event.put("sent", sent);
+        } catch (JSONException e) {
+            // Can't happen with strings and numbers
+        }
+        ClientEvents.send(conn, event);
+    }
+
+    private void sendRaw() throws IOException, InterruptedException {
+        int chunk = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, mRate * CHUNK_MILLIS / 1000));
+        TokenBucket bucket = new TokenBucket(mRate, chunk);
+        int len;
+        while ((len = readFile(mBlock, chunk)) > 0) {
+            long wait = bucket.waitMillis(len);
+            if (wait > 0)
+                Thread.sleep(wait);
+            bucket.consume(len);
+            write(mBlock, len);
+            mSent += len;
+            progress(false);
+        }
+    }
+
+    private void sendXmodem(boolean ymodem) throws IOException, InterruptedException {
+        boolean crc = awaitStart(!ymodem);
+        if (ymodem) {
+            // Block 0: the name and the size, zero terminated
+            Arrays.fill(mBlock, 0, SHORT_BLOCK_SIZE, (byte) 0);
+            byte[] header = (mName + "\0" + (mSize >= 0 ? String.valueOf(mSize) : "")).getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(header, 0, mBlock, 0, header.length);
+            sendBlock(0, SHORT_BLOCK_SIZE, true);
+            awaitStart(false);
+        }
+        int number = 1;
+        int len;
+        while ((len = readFile(mBlock, crc ? BLOCK_SIZE : SHORT_BLOCK_SIZE)) > 0) {
+            // A short tail needs less padding on the wire
+            int size = crc && len > SHORT_BLOCK_SIZE ? BLOCK_SIZE : SHORT_BLOCK_SIZE;
+            Arrays.fill(mBlock, len, size, PAD);
+            sendBlock(number++, size, crc);
+            mSent += len;
+            progress(false);
+        }
+        // Receivers commonly NAK the first EOT to make sure it wasn't noise
+        for (int attempt = 0; ; attempt++) {
+            if (attempt > MAX_RETRIES)
+                throw new UploadException(ERROR_TIMEOUT, "End of transmission not acknowledged");
+            mFrame[0] = EOT;
+            clearInput();
+            write(mFrame, 1);
+            if (awaitReply(REPLY_TIMEOUT) == ACK) break;
+        }
+        if (ymodem) {
+            // An empty block 0 ends the batch
+            awaitStart(false);
+            Arrays.fill(mBlock, 0, SHORT_BLOCK_SIZE, (byte) 0);
+            sendBlock(0, SHORT_BLOCK_SIZE, true);
+        }
+    }
+
+    // Waits for the receiver to ask for blocks, returns whether it wants a CRC
+    private boolean awaitStart(boolean acceptChecksum) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (true) {
+            int b = readInput(deadline);
+            if (b < 0)
+                throw new UploadException(ERROR_TIMEOUT, "Receiver didn't start");
+            if (b == CRC_REQUEST) break;
+            if (b == NAK && acceptChecksum) {
+                clearInput();
+                return false;
+            }
+            if (b == CAN) checkCancel();
+        }
+        // It repeats the request until it gets a block, the spare ones would be taken for replies
+        clearInput();
+        return true;
+    }
+
+    private void sendBlock(int number, int size, boolean crc) throws IOException, InterruptedException {
+        mFrame[0] = size == BLOCK_SIZE ? STX : SOH;
+        mFrame[1] = (byte) number;
+        mFrame[2] = (byte) ~number;
+        System.arraycopy(mBlock, 0, mFrame, 3, size);
+        int len = 3 + size;
+        if (crc) {
+            int value = crc16(mBlock, size);
+            mFrame[len++] = (byte) (value >>> 8);
+            mFrame[len++] = (byte) value;
+        } else {
+            int sum = 0;
+            for (int i = 0; i < size; i++)
+                sum += mBlock[i];
+            mFrame[len++] = (byte) sum;
+        }
+        long timeout = REPLY_TIMEOUT + mFormat.transmitTimeMillis(len);
+        for (int attempt = 0; ; attempt++) {
+            if (attempt > MAX_RETRIES)
+                throw new UploadException(ERROR_TIMEOUT, "Block " + number + " not acknowledged after " + MAX_RETRIES + " retries");
+            if (attempt > 0)
+                mRetries++;
+            clearInput();
+            write(mFrame, len);
+            // NAK or no reply at all, send it again
+            if (awaitReply(timeout) == ACK) return;
+        }
+    }
+
+    // ACK, NAK or -1 on timeout, anything else from the device is ignored
+    private int awaitReply(long timeout) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            int b = readInput(deadline);
+            if (b < 0 || b == ACK || b == NAK) return b;
+            if (b == CAN) checkCancel();
+        }
+    }
+
+    // Two CANs in a row cancel, a single one may have been line noise
+    private void checkCancel() throws IOException, InterruptedException {
+        if (readInput(System.currentTimeMillis() + CANCEL_TIMEOUT) == CAN)
+            throw new UploadException(ERROR_DEVICE_CANCELLED, "Cancelled by the receiver");
+    }
+
+    private int readInput(long deadline) throws IOException, InterruptedException {
+        synchronized (mInput) {
+            while (mInputCount == 0) {
+                if (mAbort != null) throw mAbort;
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return -1;
+                mInput.wait(left);
+            }
+            int b = mInput[mInputHead] & 0xFF;
+            mInputHead = (mInputHead + 1) % mInput.length;
+            mInputCount--;
+            return b;
+        }
+    }
+
+    private void clearInput() {
+        synchronized (mInput) {
+            mInputCount = 0;
+        }
+    }
+
+    // Takes up to len bytes of the file, fewer only at its end
+    private int readFile(byte[] dest, int len) throws IOException, InterruptedException {
+        int read = 0;
+        while (read < len) {
+            int n;
+            synchronized (mWindow) {
+                if (mAbort != null) throw mAbort;
+                n = Math.min(len - read, Math.min(mWindowCount, mWindow.length - mWindowHead));
+                if (n == 0 && mEnded) break;
+                System.arraycopy(mWindow, mWindowHead, dest, read, n);
+                mWindowHead = (mWindowHead + n) % mWindow.length;
+                mWindowCount -= n;
+            }
+            if (n == 0) {
+                // Out of data, make sure the client knows it may send more
+                acknowledge();
+                synchronized (mWindow) {
+                    while (mWindowCount == 0 && !mEnded && mAbort == null)
+                        mWindow.wait();
+                }
+                continue;
+            }
+            read += n;
+            mConsumed += n;
+            if (mConsumed - mAcked >= mWindow.length / 4)
+                acknowledge();
+        }
+        return read;
+    }
+
+    // The client may send until it is "window" bytes ahead of "consumed"
+    private void acknowledge() {
+        if (mConsumed == mAcked) return;
+        mAcked = mConsumed;
+        JSONObject event = ClientEvents.create(ClientEvents.UPLOAD_ACK);
+        try {
+            event.put("consumed", mConsumed);
+        } catch (JSONException e) {
+            // Can't happen with numbers
+        }
+        ClientEvents.send(mConn, event);
+    }
+
+    private void progress(boolean force) {
+        long now = System.currentTimeMillis();
+        if (!force && now - mLastProgress < PROGRESS_INTERVAL) return;
+        mLastProgress = now;
+        JSONObject event = ClientEvents.create(ClientEvents.UPLOAD_PROGRESS);
+        try {
+            event.put("sent", mSent);
+            event.put("size", mSize);
+            event.put("retries", mRetries);
+            event.put("rate", mSent * 1000 / Math.max(1, now - mStartTime));
+        } catch (JSONException e) {
+            // Can't happen with numbers
+        }
+        ClientEvents.send(mConn, event);
+    }
+
+    private void write(byte[] data, int len) throws IOException {
+        mUsbSerialWebsocketService.writeSerialPort(data, 0, len);
+    }
+
+    // CRC-16/XMODEM, polynomial 0x1021, initial value 0
+    static int crc16(byte[] data, int len) {
+        int crc = 0;
+        for (int i = 0; i < len; i++) {
+            crc ^= (data[i] & 0xFF) << 8;
+            for (int bit = 0; bit < 8; bit++)
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+        }
+        return crc & 0xFFFF;
+    }
+}
@@ -0,0 +1,318 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import android.content.pm.PackageManager;
+import android.net.Credentials;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Serves apps on the same device without TCP, the HTTP upgrade or WebSocket framing in the way.
+// Listens on an abstract namespace socket, and also takes socket pairs handed out by
+// SerialBridgeService. Both directions carry frames of a u32 big-endian length followed by
+// that many bytes: data read from the port towards the app, data to write to the port back.
+// Anyone on the device can connect to an abstract socket, so peers without PERMISSION are
+// turned away, like the service does for apps binding it.
+public class LocalEndpoint extends Thread {
+    final static String SOCKET_NAME = "usbserialwebsocketserver";
+    final static String PERMISSION = "com.clusterrr.usbserialwebsocketserver.permission.SERIAL_BRIDGE";
+    final static int HEADER_SIZE = 4;
+    final static int RING_SIZE = 64 * 1024;
+    final static int MAX_FRAME_SIZE = 64 * 1024;
+    final static int WRITE_POOL_SIZE = 16;
+    final static int WRITE_BUFFER_SIZE = 1024;
+    final static int REJECTED_RETRY_DELAY = 50; // ms
+
+    private final UsbSerialWebsocketService mUsbSerialWebsocketService;
+    private final LocalServerSocket mServerSocket;
+    private final BufferPool mWritePool = new BufferPool("local writes", WRITE_POOL_SIZE, WRITE_BUFFER_SIZE);
+    // Copy-on-write snapshot, like the WebSocket clients
+    private volatile Client[] mClients = new Client[0];
+    private volatile boolean mStopped = false;
+
+    // Data for the app goes into a ring of framed bytes, drained by the client's own sender
+    // thread, so the fan-out only ever copies. An app that lets the ring fill up
+    // is disconnected rather than allowed to hold up the port.
+    private class Client {
+        private final String mName;
+        private final Closeable mChannel;
+        private final FileDescriptor mFd;
+        private final InputStream mIn;
+        private final OutputStream mOut;
+        private final byte[] mRing = new byte[RING_SIZE];
+        private int mHead = 0;
+        private int mCount = 0;
+        private boolean mClosed = false;
+        private final SerialWriteScheduler.Client mWriter;
+
+        Client(String name, Closeable channel, FileDescriptor fd, InputStream in, OutputStream out) {
+            mName = name;
+            mChannel = channel;
+            mFd = fd;
+            mIn = in;
+            mOut = out;
+            SerialWriteScheduler scheduler = mUsbSerialWebsocketService.getWriteScheduler();
+            mWriter = scheduler != null ? scheduler.register(1, 0, true, null) : null;
+        }
+
+        void start() {
+            new Thread(this::send, "LocalEndpoint sender " + mName).start();
+            new Thread(this::receive, "LocalEndpoint receiver " + mName).start();
+        }
+
+        // Called on the fan-out thread
+        synchronized void offer(byte[] data, int offset, int len) {
+            if (mClosed) return;
+            if (mCount + HEADER_SIZE + len > mRing.length) {
+                Log.w(UsbSerialWebsocketService.TAG, "Local client " + mName + " is too slow, disconnecting");
+                close();
+                return;
+            }
+            put((byte) (len >>> 24));
+            put((byte) (len >>> 16));
+            put((byte) (len >>> 8));
+            put((byte) len);
+            int tail = (mHead + mCount) % mRing.length;
+            int first = Math.min(len, mRing.length - tail);
+            System.arraycopy(data, offset, mRing, tail, first);
+            System.arraycopy(data, offset + first, mRing, 0, len - first);
+            mCount += len;
+            notify();
+        }
+
+        private void put(byte b) {
+            mRing[(mHead + mCount) % mRing.length] = b;
+            mCount++;
+        }
+
+        // Everything queued since the last write goes out in one write
+        private void send() {
+            byte[] out = new byte[RING_SIZE];
+            try {
+                while (true) {
+                    int len;
+                    synchronized (this) {
+                        while (mCount == 0 && !mClosed)
+                            wait();
+                        if (mClosed) break;
+                        len = mCount;
+                        int first = Math.min(len, mRing.length - mHead);
+                        System.arraycopy(mRing, mHead, out, 0, first);
+                        System.arraycopy(mRing, 0, out, first, len - first);
+                        mHead = (mHead + len) % mRing.length;
+                        mCount = 0;
+                    }
+                    mOut.write(out, 0, len);
+                }
+            } catch (IOException | InterruptedException e) {
+                // Closed by the app or by us
+            }
+            close();
+        }
+
+        private void receive() {
+            DataInputStream in = new DataInputStream(mIn);
+            try {
+                while (true) {
+                    int len;
+                    try {
+                        len = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (len < 0 || len > MAX_FRAME_SIZE)
+                        throw new IOException("Invalid frame length " + len);
+                    while (len > 0) {
+                        PooledBuffer pooled = mWritePool.acquire();
+                        int size = Math.min(len, pooled.buffer().capacity());
+                        try {
+                            in.readFully(pooled.array(), 0, size);
+                        } catch (IOException e) {
+                            pooled.release();
+                            throw e;
+                        }
+                        pooled.buffer().limit(size);
+                        writeSerial(pooled);
+                        len -= size;
+                    }
+                }
+            } catch (IOException e) {
+                if (!isClosed())
+                    Log.w(UsbSerialWebsocketService.TAG, "Local client " + mName + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                // Stopping
+            }
+            close();
+        }
+
+        // Takes over the reference to pooled. A full queue holds the app back instead of
+        // dropping its data, it blocks in its own write like on any pipe.
+        private void writeSerial(PooledBuffer pooled) throws IOException, InterruptedException {
+            SerialWriteScheduler scheduler = mUsbSerialWebsocketService.getWriteScheduler();
+            int len = pooled.buffer().remaining();
+            if (scheduler == null || mWriter == null) {
+                try {
+                    mUsbSerialWebsocketService.writeSerialPort(pooled.array(), 0, len, true);
+                } finally {
+                    pooled.release();
+                }
+                return;
+            }
+            while (scheduler.admit(mWriter, len) != SerialWriteScheduler.SubmitResult.ACCEPTED) {
+                if (isClosed()) {
+                    pooled.release();
+                    return;
+                }
+                Thread.sleep(REJECTED_RETRY_DELAY);
+            }
+            scheduler.enqueue(mWriter, pooled);
+        }
+
+        synchronized boolean isClosed() {
+            return mClosed;
+        }
+
+        void close() {
+            synchronized (this) {
+                if (mClosed) return;
+                mClosed = true;
+                notify();
+            }
+            removeClient(this);
+            SerialWriteScheduler scheduler = mUsbSerialWebsocketService.getWriteScheduler();
+            if (scheduler != null && mWriter != null)
+                scheduler.unregister(mWriter);
+            // Closing alone doesn't wake up a thread blocked reading the socket
+            try {
+                Os.shutdown(mFd, OsConstants.SHUT_RDWR);
+            } catch (ErrnoException e) {
+                // Already gone
+            }
+            closeQuietly(mChannel);
+            Log.i(UsbSerialWebsocketService.TAG, "Local client " + mName + " disconnected");
+        }
+    }
+
+    public LocalEndpoint(UsbSerialWebsocketService UsbSerialWebsocketService) throws IOException {
+        super("LocalEndpoint");
+        mUsbSerialWebsocketService = UsbSerialWebsocketService;
+        mServerSocket = new LocalServerSocket(SOCKET_NAME);
+    }
+
+    @Override
+    public void run() {
+        Log.i(UsbSerialWebsocketService.TAG, "Local socket listening on @" + SOCKET_NAME);
+        while (!mStopped) {
+            LocalSocket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                if (!mStopped)
+                    Log.e(UsbSerialWebsocketService.TAG, "Local socket: " + e.getMessage());
+                break;
+            }
+            if (mStopped) {
+                closeQuietly(socket);
+                break;
+            }
+            try {
+                Credentials peer = socket.getPeerCredentials();
+                String name = "uid " + peer.getUid() + " pid " + peer.getPid();
+                if (!isAllowed(peer)) {
+                    Log.w(UsbSerialWebsocketService.TAG, "Local client " + name + " doesn't have the permission, rejected");
+                    closeQuietly(socket);
+                    continue;
+                }
+                Log.i(UsbSerialWebsocketService.TAG, "Local client connected: " + name);
+                addClient(new Client(name, socket, socket.getFileDescriptor(), socket.getInputStream(), socket.getOutputStream()));
+            } catch (IOException e) {
+                Log.w(UsbSerialWebsocketService.TAG, "Local client failed: " + e.getMessage());
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    // This app itself, or one that was granted PERMISSION
+    private boolean isAllowed(Credentials peer) {
+        return peer.getUid() == Process.myUid()
+                || mUsbSerialWebsocketService.checkPermission(PERMISSION, peer.getPid(), peer.getUid()) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    // The app's end of a new connection, for SerialBridgeService
+    public ParcelFileDescriptor openPipe(String name) throws IOException {
+        if (mStopped) throw new IOException("Local endpoint stopped");
+        ParcelFileDescriptor[] pair = ParcelFileDescriptor.createSocketPair();
+        ParcelFileDescriptor ours = pair[0];
+        Log.i(UsbSerialWebsocketService.TAG, "Local client connected: " + name);
+        addClient(new Client(name, ours, ours.getFileDescriptor(),
+                new FileInputStream(ours.getFileDescriptor()), new FileOutputStream(ours.getFileDescriptor())));
+        return pair[1];
+    }
+
+    // Called on the fan-out thread with everything read from the port
+    public void write(byte[] data, int offset, int len) {
+        for (Client client : mClients)
+            client.offer(data, offset, len);
+    }
+
+    public void close() {
+        mStopped = true;
+        // accept() doesn't notice the socket closing, a connection wakes it up
+        LocalSocket wakeUp = new LocalSocket();
+        try {
+            wakeUp.connect(new LocalSocketAddress(SOCKET_NAME));
+        } catch (IOException e) {
+            // Not listening anymore
+        }
+        closeQuietly(wakeUp);
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        for (Client client : mClients)
+            client.close();
+    }
+
+    private synchronized void addClient(Client client) {
+        Client[] clients = new Client[mClients.length + 1];
+        System.arraycopy(mClients, 0, clients, 0, mClients.length);
+        clients[mClients.length] = client;
+        mClients = clients;
+        client.start();
+    }
+
+    private synchronized void removeClient(Client client) {
+        for (int i = 0; i < mClients.length; i++) {
+            if (mClients[i] != client) continue;
+            Client[] clients = new Client[mClients.length - 1];
+            System.arraycopy(mClients, 0, clients, 0, i);
+            System.arraycopy(mClients, i + 1, clients, i, mClients.length - i - 1);
+            mClients = clients;
+            return;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+}
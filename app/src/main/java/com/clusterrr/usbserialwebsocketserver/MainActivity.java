@@ -36,6 +36,11 @@ import com.hoho.android.usbserial.driver.UsbSerialProber;
 import com.hoho.android.usbserial.driver.ProbeTable;
 import com.hoho.android.usbserial.driver.Ch34xSerialDriver;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 
 public class MainActivity extends AppCompatActivity implements View.OnClickListener, UsbSerialWebsocketService.IOnStartStopListener, AdapterView.OnItemSelectedListener {
@@ -48,6 +53,18 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     final static String SETTING_PARITY = "parity";
     final static String SETTING_REMOVE_LF = "remove_lf";
     final static String SETTING_AUTOSTART = "autostart";
+    final static String SETTING_USE_TLS = "use_tls";
+    // Stored in plaintext by older versions, only read once to move it to SETTING_KEYSTORE_SECRET
+    final static String SETTING_KEYSTORE_PASSWORD = "keystore_password";
+    final static String SETTING_KEYSTORE_SECRET = "keystore_secret";
+    final static String SETTING_CHAR_DELAY = "char_delay";
+    final static String SETTING_LINE_DELAY = "line_delay";
+    final static String SETTING_UPLINK_URL = "uplink_url";
+    final static String SETTING_LOCAL_IPC = "local_ipc";
+    final static String SETTING_FAN_OUT_WAIT = "fan_out_wait";
+
+    final static int REQUEST_IMPORT_KEYSTORE = 1;
+    final static int STATS_REFRESH_INTERVAL = 2000;
 
     final static int AUTOSTART_DISABLED = 0;
     final static int AUTOSTART_ENABLED = 1;
@@ -65,9 +82,18 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     private AppCompatSpinner mDataBits;
     private AppCompatSpinner mStopBits;
     private AppCompatSpinner mParity;
+    private AppCompatSpinner mFanOutWait;
     private AppCompatTextView mStatus;
     private SwitchCompat mRemoveLF;
     private AppCompatSpinner mAutostart;
+    private SwitchCompat mUseTls;
+    private AppCompatEditText mKeystorePassword;
+    private AppCompatButton mImportKeystore;
+    private AppCompatButton mDumpTrace;
+    private AppCompatEditText mCharDelay;
+    private AppCompatEditText mLineDelay;
+    private AppCompatEditText mUplinkUrl;
+    private SwitchCompat mLocalIpc;
 
     public boolean isStarted() {
         return mServiceBinder != null && mServiceBinder.isStarted();
@@ -90,13 +116,24 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         mDataBits = findViewById(R.id.spinnerDataBits);
         mStopBits = findViewById(R.id.spinnerStopBits);
         mParity = findViewById(R.id.spinnerParity);
+        mFanOutWait = findViewById(R.id.spinnerFanOutWait);
         mStatus = findViewById(R.id.textViewStatus);
         mRemoveLF = findViewById(R.id.switchRemoveLf);
         mAutostart = findViewById(R.id.spinnerAutostart);
+        mUseTls = findViewById(R.id.switchUseTls);
+        mKeystorePassword = findViewById(R.id.editTextKeystorePassword);
+        mImportKeystore = findViewById(R.id.buttonImportKeystore);
+        mDumpTrace = findViewById(R.id.buttonDumpTrace);
+        mCharDelay = findViewById(R.id.editTextCharDelay);
+        mLineDelay = findViewById(R.id.editTextLineDelay);
+        mUplinkUrl = findViewById(R.id.editTextUplinkUrl);
+        mLocalIpc = findViewById(R.id.switchLocalIpc);
 
         mAutostart.setOnItemSelectedListener(this);
         mStartButton.setOnClickListener(this);
         mStopButton.setOnClickListener(this);
+        mImportKeystore.setOnClickListener(this);
+        mDumpTrace.setOnClickListener(this);
 
         Intent serviceIntent = new Intent(this, UsbSerialWebsocketService.class);
         bindService(serviceIntent, mServiceConnection, 0); // in case if service already started
@@ -172,12 +209,47 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         }
     }    
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mHandler.postDelayed(mStatsUpdater, STATS_REFRESH_INTERVAL);
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
+        mHandler.removeCallbacks(mStatsUpdater);
         saveSettings();
     }
 
+    private final Runnable mStatsUpdater = new Runnable() {
+        @Override
+        public void run() {
+            if (isStarted())
+                updateStatus();
+            mHandler.postDelayed(this, STATS_REFRESH_INTERVAL);
+        }
+    };
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode != REQUEST_IMPORT_KEYSTORE || resultCode != RESULT_OK || data == null || data.getData() == null)
+            return;
+        File keystore = TlsServerFactory.getKeystoreFile(this);
+        try (InputStream in = getContentResolver().openInputStream(data.getData());
+             OutputStream out = new FileOutputStream(keystore)) {
+            byte[] buffer = new byte[4096];
+            int l;
+            while ((l = in.read(buffer)) > 0)
+                out.write(buffer, 0, l);
+            Toast.makeText(this, R.string.keystore_imported, Toast.LENGTH_SHORT).show();
+        } catch (IOException | NullPointerException e) {
+            keystore.delete();
+            Toast.makeText(this, getString(R.string.error) + " " + e.getMessage(), Toast.LENGTH_LONG).show();
+        }
+    }
+
     @Override
     public void onClick(View view)
     {
@@ -190,9 +262,34 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
             case R.id.buttonStop:
                 stop();
                 break;
+            case R.id.buttonImportKeystore:
+                Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("*/*");
+                startActivityForResult(intent, REQUEST_IMPORT_KEYSTORE);
+                break;
+            case R.id.buttonDumpTrace:
+                dumpTrace();
+                break;
         }
     }
 
+    // To the app's external files directory, where it can be pulled with adb or a file manager
+    private void dumpTrace() {
+        File dir = getExternalFilesDir(null);
+        final File traceDir = dir != null ? dir : getFilesDir();
+        new Thread(() -> {
+            String message;
+            try {
+                message = getString(R.string.trace_saved, Tracer.dumpToFile(traceDir).getAbsolutePath());
+            } catch (IOException e) {
+                message = getString(R.string.error) + " " + e.getMessage();
+            }
+            final String msg = message;
+            runOnUiThread(() -> Toast.makeText(MainActivity.this, msg, Toast.LENGTH_LONG).show());
+        }).start();
+    }
+
     @Override
     public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
         if (parent.getId() != R.id.spinnerAutostart) return;
@@ -245,6 +342,14 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         }
         serviceIntent.putExtra(UsbSerialWebsocketService.KEY_PARITY, prefs.getInt(SETTING_PARITY, 0));
         serviceIntent.putExtra(UsbSerialWebsocketService.KEY_REMOVE_LF, prefs.getBoolean(SETTING_REMOVE_LF, true));
+        serviceIntent.putExtra(UsbSerialWebsocketService.KEY_CHAR_DELAY, prefs.getInt(SETTING_CHAR_DELAY, 0));
+        serviceIntent.putExtra(UsbSerialWebsocketService.KEY_LINE_DELAY, prefs.getInt(SETTING_LINE_DELAY, 0));
+        serviceIntent.putExtra(UsbSerialWebsocketService.KEY_USE_TLS, prefs.getBoolean(SETTING_USE_TLS, false));
+        // Not read back from the settings, they don't keep it before Android 6
+        serviceIntent.putExtra(UsbSerialWebsocketService.KEY_KEYSTORE_PASSWORD, mKeystorePassword.getText().toString());
+        serviceIntent.putExtra(UsbSerialWebsocketService.KEY_UPLINK_URL, prefs.getString(SETTING_UPLINK_URL, ""));
+        serviceIntent.putExtra(UsbSerialWebsocketService.KEY_LOCAL_IPC, prefs.getBoolean(SETTING_LOCAL_IPC, false));
+        serviceIntent.putExtra(UsbSerialWebsocketService.KEY_FAN_OUT_WAIT, prefs.getInt(SETTING_FAN_OUT_WAIT, 0));
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             startForegroundService(serviceIntent);
         } else {
@@ -317,7 +422,23 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         catch (NumberFormatException e) {
             baudRate = 115200;
         }
-        prefs.edit()
+        int charDelay;
+        try {
+            charDelay = Integer.parseInt(mCharDelay.getText().toString());
+        }
+        catch (NumberFormatException e) {
+            charDelay = 0;
+        }
+        int lineDelay;
+        try {
+            lineDelay = Integer.parseInt(mLineDelay.getText().toString());
+        }
+        catch (NumberFormatException e) {
+            lineDelay = 0;
+        }
+        SharedPreferences.Editor editor = prefs.edit();
+        SecretStore.put(editor, SETTING_KEYSTORE_SECRET, mKeystorePassword.getText().toString());
+        editor.remove(SETTING_KEYSTORE_PASSWORD)
                 .putBoolean(SETTING_LOCAL_ONLY, mLocalOnly.isChecked())
                 .putInt(SETTING_WS_PORT, wsPort)
                 .putInt(SETTING_PORT_ID, mPortId.getSelectedItemPosition())
@@ -326,6 +447,12 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                 .putInt(SETTING_STOP_BITS, mStopBits.getSelectedItemPosition())
                 .putInt(SETTING_PARITY, mParity.getSelectedItemPosition())
                 .putBoolean(SETTING_REMOVE_LF, mRemoveLF.isChecked())
+                .putInt(SETTING_CHAR_DELAY, charDelay)
+                .putInt(SETTING_LINE_DELAY, lineDelay)
+                .putBoolean(SETTING_USE_TLS, mUseTls.isChecked())
+                .putString(SETTING_UPLINK_URL, mUplinkUrl.getText().toString().trim())
+                .putBoolean(SETTING_LOCAL_IPC, mLocalIpc.isChecked())
+                .putInt(SETTING_FAN_OUT_WAIT, mFanOutWait.getSelectedItemPosition())
                 .apply();
     }
 
@@ -340,19 +467,50 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         mDataBits.setEnabled(!started);
         mStopBits.setEnabled(!started);
         mParity.setEnabled(!started);
+        mFanOutWait.setEnabled(!started);
         mRemoveLF.setEnabled(!started);
+        mUseTls.setEnabled(!started);
+        mCharDelay.setEnabled(!started);
+        mLineDelay.setEnabled(!started);
+        mKeystorePassword.setEnabled(!started);
+        mUplinkUrl.setEnabled(!started);
+        mLocalIpc.setEnabled(!started);
+        mImportKeystore.setEnabled(!started);
         mLocalOnly.setChecked(prefs.getBoolean(SETTING_LOCAL_ONLY, false));
         mWsPort.setText(String.valueOf(prefs.getInt(SETTING_WS_PORT, 8080)));
         mBaudRate.setText(String.valueOf(prefs.getInt(SETTING_BAUD_RATE, 115200)));
         mDataBits.setSelection(prefs.getInt(SETTING_DATA_BITS, 3));
         mStopBits.setSelection(prefs.getInt(SETTING_STOP_BITS, 0));
         mParity.setSelection(prefs.getInt(SETTING_PARITY, 0));
+        mFanOutWait.setSelection(prefs.getInt(SETTING_FAN_OUT_WAIT, 0));
         mRemoveLF.setChecked(prefs.getBoolean(SETTING_REMOVE_LF, true));
         mAutostart.setSelection(prefs.getInt(SETTING_AUTOSTART, AUTOSTART_DISABLED));
-        if (started)
-            mStatus.setText(getString(R.string.started_please_connect) + " ws://" + (prefs.getBoolean(SETTING_LOCAL_ONLY, false) ? "127.0.0.1" : UsbSerialWebsocketService.getIPAddress()) + ":"+ mWsPort.getText());
-        else
+        mUseTls.setChecked(prefs.getBoolean(SETTING_USE_TLS, false));
+        mCharDelay.setText(String.valueOf(prefs.getInt(SETTING_CHAR_DELAY, 0)));
+        mLineDelay.setText(String.valueOf(prefs.getInt(SETTING_LINE_DELAY, 0)));
+        String password = prefs.getString(SETTING_KEYSTORE_PASSWORD, "");
+        if (password.isEmpty())
+            password = SecretStore.get(prefs, SETTING_KEYSTORE_SECRET);
+        // Where nothing could be stored, keep what was typed in
+        if (!password.isEmpty() || Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+            mKeystorePassword.setText(password);
+        mUplinkUrl.setText(prefs.getString(SETTING_UPLINK_URL, ""));
+        mLocalIpc.setChecked(prefs.getBoolean(SETTING_LOCAL_IPC, false));
+        updateStatus();
+    }
+
+    private void updateStatus() {
+        SharedPreferences prefs = getSharedPreferences(getString(R.string.app_name), Context.MODE_PRIVATE);
+        if (isStarted()) {
+            String status = getString(R.string.started_please_connect) + (prefs.getBoolean(SETTING_USE_TLS, false) ? " wss://" : " ws://")
+                    + (prefs.getBoolean(SETTING_LOCAL_ONLY, false) ? "127.0.0.1" : UsbSerialWebsocketService.getIPAddress()) + ":" + prefs.getInt(SETTING_WS_PORT, 8080);
+            String tlsStats = mServiceBinder.getTlsStats();
+            if (tlsStats != null)
+                status += "\n" + tlsStats;
+            mStatus.setText(status);
+        } else {
             mStatus.setText(R.string.not_started);
+        }
     }
 
     public static Intent prepareIntentForWhiteListingOfBatteryOptimization(Context context, String packageName, boolean alsoWhenWhiteListed) {
@@ -0,0 +1,39 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+// CRC-16/MODBUS (reflected polynomial 0xA001, initial value 0xFFFF), one table lookup per byte
+public class ModbusCrc {
+    private final static int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++)
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+            TABLE[i] = crc;
+        }
+    }
+
+    private ModbusCrc() {
+    }
+
+    public static int compute(byte[] data, int offset, int len) {
+        int crc = 0xFFFF;
+        for (int i = offset; i < offset + len; i++)
+            crc = (crc >>> 8) ^ TABLE[(crc ^ data[i]) & 0xFF];
+        return crc;
+    }
+
+    // Appends the CRC low byte first, as it goes on the wire, and returns the new length
+    public static int append(byte[] frame, int len) {
+        int crc = compute(frame, 0, len);
+        frame[len] = (byte) crc;
+        frame[len + 1] = (byte) (crc >>> 8);
+        return len + 2;
+    }
+
+    public static boolean check(byte[] frame, int len) {
+        if (len < 4) return false;
+        int crc = compute(frame, 0, len - 2);
+        return frame[len - 2] == (byte) crc && frame[len - 1] == (byte) (crc >>> 8);
+    }
+}
@@ -0,0 +1,507 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import android.util.Log;
+
+import org.java_websocket.WebSocket;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+// Modbus RTU master for clients connected to /modbus. Their JSON requests (see ModbusRequest)
+// go into one queue, so any number of clients share the bus one transaction at a time.
+// Queued reads of the same unit and table that overlap or touch are merged into a single
+// transaction, and every value read is cached, so a read with "max_age" is answered
+// without touching the bus if all of its values are fresh enough.
+// Responses are framed by their expected length rather than by the silent interval,
+// because USB adapters deliver received bytes in packets and lose the inter-byte timing.
+// Each transaction holds the write scheduler, so no client data gets between a request,
+// its silent interval and the response.
+public class ModbusGateway extends Thread {
+    final static String PATH = "/modbus";
+    final static int MAX_QUEUE = 1024;
+    final static int RESPONSE_TIMEOUT = 1000; // ms
+    final static int RETRIES = 2;
+    final static int BROADCAST_DELAY = 100; // ms, for the units to process a broadcast
+    final static int MAX_FRAME_SIZE = 256;
+    final static int EXCEPTION_RESPONSE_SIZE = 5;
+    // Above 19200 baud the specification fixes the silent interval instead of 3.5 characters
+    final static int FAST_BAUD_RATE = 19200;
+    final static long FAST_SILENT_INTERVAL = 1_750_000L; // ns
+
+    final static String ERROR_INVALID_REQUEST = "invalid_request";
+    final static String ERROR_BUSY = "busy";
+    final static String ERROR_TIMEOUT = "timeout";
+    final static String ERROR_INVALID_RESPONSE = "invalid_response";
+    final static String ERROR_EXCEPTION = "exception";
+    final static String ERROR_WRITE_FAILED = "write_failed";
+
+    private final static int RESULT_OK = 0;
+    private final static int RESULT_TIMEOUT = -1;
+    private final static int RESULT_INVALID = -2;
+
+    // Requests served by one transaction on the bus
+    private static class Batch {
+        final int mUnit;
+        final int mFunction;
+        int mAddress;
+        int mEnd;
+        final List<ModbusRequest> mRequests = new ArrayList<>();
+
+        Batch(ModbusRequest request) {
+            mUnit = request.mUnit;
+            mFunction = request.mFunction;
+            mAddress = request.mAddress;
+            mEnd = request.getEnd();
+            mRequests.add(request);
+        }
+    }
+
+    private final SerialWriteScheduler.Sink mSink;
+    private final SerialWriteScheduler mScheduler;
+    private final SerialFormat mFormat;
+    private final long mSilentInterval;
+    private final ArrayDeque<ModbusRequest> mQueue = new ArrayDeque<>();
+    // The batch on the bus right now, guarded by this like the queue
+    private Batch mCurrent = null;
+    // unit, table and address -> {value, System.nanoTime() when read}
+    private final HashMap<Integer, long[]> mCache = new HashMap<>();
+    private final byte[] mFrame = new byte[MAX_FRAME_SIZE];
+    // The response being received, guarded by itself
+    private final byte[] mResponse = new byte[MAX_FRAME_SIZE];
+    private int mResponseLength = 0;
+    private int mExpected = 0;
+    private volatile boolean mAwaiting = false;
+    // When the bus was last busy, in System.nanoTime()
+    private volatile long mLastActivity = 0;
+    private volatile boolean mStopped = false;
+
+    // scheduler may be null, then nothing else writes to the port
+    public ModbusGateway(SerialWriteScheduler.Sink sink, SerialWriteScheduler scheduler, SerialFormat format) {
+        super("ModbusGateway");
+        mSink = sink;
+        mScheduler = scheduler;
+        mFormat = format;
+        mSilentInterval = format.baudRate > FAST_BAUD_RATE ? FAST_SILENT_INTERVAL : format.charTimeNanos() * 7 / 2;
+    }
+
+    // Called on the WebSocket thread for each text message of a /modbus client
+    public void submit(WebSocket conn, String message) {
+        ModbusRequest request;
+        try {
+            request = ModbusRequest.fromJson(conn, new JSONObject(message));
+        } catch (JSONException e) {
+            Object id = null;
+            try {
+                id = new JSONObject(message).opt("id");
+            } catch (JSONException ignored) {
+                // Not even an object
+            }
+            sendError(conn, id, ERROR_INVALID_REQUEST, e.getMessage(), 0);
+            return;
+        }
+        int[] cached = null;
+        synchronized (this) {
+            // A read mustn't overtake a write of the same values, the cache doesn't have it yet
+            if (request.isRead() && request.mMaxAge > 0 && !isWritePending(request))
+                cached = getCached(request);
+            if (cached == null) {
+                if (mQueue.size() >= MAX_QUEUE) {
+                    sendError(conn, request.mId, ERROR_BUSY, "Too many requests queued", 0);
+                    return;
+                }
+                mQueue.add(request);
+                notify();
+            }
+        }
+        if (cached != null)
+            sendValues(request, cached, 0, true);
+    }
+
+    // Caller holds the lock
+    private boolean isWritePending(ModbusRequest read) {
+        if (mCurrent != null && overwrites(mCurrent.mRequests.get(0), read))
+            return true;
+        for (ModbusRequest request : mQueue) {
+            if (overwrites(request, read))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean overwrites(ModbusRequest write, ModbusRequest read) {
+        return !write.isRead() && (write.mUnit == read.mUnit || write.mUnit == 0) && write.getTable() == read.getTable()
+                && write.mAddress < read.getEnd() && read.mAddress < write.getEnd();
+    }
+
+    // Called on the serial reader thread with everything read from the port
+    public void onSerialData(byte[] data, int len) {
+        mLastActivity = System.nanoTime();
+        if (!mAwaiting) return;
+        synchronized (mResponse) {
+            if (!mAwaiting) return;
+            int size = Math.min(len, mResponse.length - mResponseLength);
+            System.arraycopy(data, 0, mResponse, mResponseLength, size);
+            mResponseLength += size;
+            if (mResponseLength >= 2 && (mResponse[1] & 0x80) != 0)
+                mExpected = EXCEPTION_RESPONSE_SIZE;
+            if (mResponseLength >= mExpected)
+                mResponse.notify();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!mStopped) {
+                Batch batch;
+                synchronized (this) {
+                    while (mQueue.isEmpty())
+                        wait();
+                    batch = nextBatch();
+                    mCurrent = batch;
+                }
+                if (batch != null) {
+                    if (mScheduler != null)
+                        mScheduler.hold(true);
+                    try {
+                        execute(batch);
+                    } finally {
+                        if (mScheduler != null)
+                            mScheduler.hold(false);
+                        synchronized (this) {
+                            mCurrent = null;
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopping
+        }
+    }
+
+    public void close() {
+        mStopped = true;
+        interrupt();
+    }
+
+    // Takes the head of the queue along with all reads that can share its transaction.
+    // Scanning stops at the first write to the same unit or a broadcast, so no read overtakes a write.
+    private Batch nextBatch() {
+        ModbusRequest head = mQueue.poll();
+        if (head.isRead() && !head.mConn.isOpen())
+            return null;
+        Batch batch = new Batch(head);
+        if (!head.isRead())
+            return batch;
+        int limit = head.isBitTable() ? ModbusRequest.MAX_READ_BITS : ModbusRequest.MAX_READ_REGISTERS;
+        boolean merged;
+        do {
+            merged = false;
+            Iterator<ModbusRequest> it = mQueue.iterator();
+            while (it.hasNext()) {
+                ModbusRequest request = it.next();
+                if (!request.isRead() && (request.mUnit == batch.mUnit || request.mUnit == 0)) break;
+                if (request.mUnit != batch.mUnit) continue;
+                if (request.mFunction != batch.mFunction) continue;
+                if (request.mAddress > batch.mEnd || request.getEnd() < batch.mAddress) continue;
+                int address = Math.min(batch.mAddress, request.mAddress);
+                int end = Math.max(batch.mEnd, request.getEnd());
+                if (end - address > limit) continue;
+                it.remove();
+                if (!request.mConn.isOpen()) continue;
+                batch.mAddress = address;
+                batch.mEnd = end;
+                batch.mRequests.add(request);
+                merged = true;
+            }
+        } while (merged);
+        return batch;
+    }
+
+    private void execute(Batch batch) throws InterruptedException {
+        ModbusRequest first = batch.mRequests.get(0);
+        int len = buildFrame(batch, first);
+        int count = batch.mEnd - batch.mAddress;
+        int expected;
+        if (!first.isRead())
+            expected = 8;
+        else if (first.isBitTable())
+            expected = 5 + (count + 7) / 8;
+        else
+            expected = 5 + count * 2;
+
+        int result = RESULT_TIMEOUT;
+        for (int attempt = 0; attempt <= RETRIES; attempt++) {
+            try {
+                result = transact(len, expected, batch.mUnit == 0);
+            } catch (IOException e) {
+                Log.e(UsbSerialWebsocketService.TAG, "Modbus write failed: " + e.getMessage());
+                invalidate(batch);
+                for (ModbusRequest request : batch.mRequests)
+                    sendError(request.mConn, request.mId, ERROR_WRITE_FAILED, e.getMessage(), 0);
+                return;
+            }
+            if (result >= RESULT_OK) break;
+            if (BuildConfig.DEBUG) {
+                Log.d(UsbSerialWebsocketService.TAG, "Modbus unit " + batch.mUnit + " function " + batch.mFunction
+                        + (result == RESULT_TIMEOUT ? " timed out" : " sent an invalid response") + ", attempt " + (attempt + 1));
+            }
+        }
+
+        if (result > 0 && batch.mRequests.size() > 1) {
+            // Maybe only one of the merged requests is out of range, don't fail the others with it
+            for (ModbusRequest request : batch.mRequests)
+                execute(new Batch(request));
+            return;
+        }
+
+        if (result != RESULT_OK) {
+            // The outcome of a failed write is unknown, so are the values it touched
+            if (!first.isRead())
+                invalidate(batch);
+            String error = result == RESULT_TIMEOUT ? ERROR_TIMEOUT : result == RESULT_INVALID ? ERROR_INVALID_RESPONSE : ERROR_EXCEPTION;
+            String message = result > 0 ? "Exception code " + result : null;
+            for (ModbusRequest request : batch.mRequests)
+                sendError(request.mConn, request.mId, error, message, Math.max(0, result));
+            return;
+        }
+
+        if (first.isRead()) {
+            if ((mResponse[2] & 0xFF) != expected - 5) {
+                for (ModbusRequest request : batch.mRequests)
+                    sendError(request.mConn, request.mId, ERROR_INVALID_RESPONSE, "Wrong byte count", 0);
+                return;
+            }
+            int[] values = new int[count];
+            for (int i = 0; i < count; i++) {
+                if (first.isBitTable())
+                    values[i] = (mResponse[3 + i / 8] >> (i % 8)) & 1;
+                else
+                    values[i] = (mResponse[3 + i * 2] & 0xFF) << 8 | (mResponse[4 + i * 2] & 0xFF);
+            }
+            putCache(batch.mUnit, first.getTable(), batch.mAddress, values);
+            for (ModbusRequest request : batch.mRequests)
+                sendValues(request, values, request.mAddress - batch.mAddress, false);
+        } else {
+            // A broadcast reaches every unit but none answers, so none of their cached values holds
+            if (batch.mUnit == 0)
+                invalidate(batch);
+            else
+                putCache(batch.mUnit, first.getTable(), first.mAddress, first.mValues);
+            sendWritten(first);
+        }
+    }
+
+    // Builds the request in mFrame and returns its length
+    private int buildFrame(Batch batch, ModbusRequest first) {
+        int count = batch.mEnd - batch.mAddress;
+        byte[] frame = mFrame;
+        frame[0] = (byte) batch.mUnit;
+        frame[1] = (byte) batch.mFunction;
+        frame[2] = (byte) (batch.mAddress >> 8);
+        frame[3] = (byte) batch.mAddress;
+        int len;
+        switch (batch.mFunction) {
+            case ModbusRequest.WRITE_COIL:
+                frame[4] = (byte) (first.mValues[0] != 0 ? 0xFF : 0x00);
+                frame[5] = 0;
+                len = 6;
+                break;
+            case ModbusRequest.WRITE_REGISTER:
+                frame[4] = (byte) (first.mValues[0] >> 8);
+                frame[5] = (byte) first.mValues[0];
+                len = 6;
+                break;
+            case ModbusRequest.WRITE_COILS: {
+                int bytes = (count + 7) / 8;
+                frame[4] = (byte) (count >> 8);
+                frame[5] = (byte) count;
+                frame[6] = (byte) bytes;
+                for (int i = 0; i < bytes; i++)
+                    frame[7 + i] = 0;
+                for (int i = 0; i < count; i++)
+                    frame[7 + i / 8] |= (byte) (first.mValues[i] << (i % 8));
+                len = 7 + bytes;
+                break;
+            }
+            case ModbusRequest.WRITE_REGISTERS:
+                frame[4] = (byte) (count >> 8);
+                frame[5] = (byte) count;
+                frame[6] = (byte) (count * 2);
+                for (int i = 0; i < count; i++) {
+                    frame[7 + i * 2] = (byte) (first.mValues[i] >> 8);
+                    frame[8 + i * 2] = (byte) first.mValues[i];
+                }
+                len = 7 + count * 2;
+                break;
+            default:
+                frame[4] = (byte) (count >> 8);
+                frame[5] = (byte) count;
+                len = 6;
+                break;
+        }
+        return ModbusCrc.append(frame, len);
+    }
+
+    // Sends mFrame after the silent interval and waits for the response.
+    // Returns RESULT_OK, RESULT_TIMEOUT, RESULT_INVALID or the exception code.
+    private int transact(int len, int expected, boolean broadcast) throws IOException, InterruptedException {
+        waitForSilence();
+        synchronized (mResponse) {
+            mResponseLength = 0;
+            mExpected = expected;
+            mAwaiting = !broadcast;
+        }
+        long start = System.nanoTime();
+        try {
+            mSink.write(mFrame, len, false);
+        } catch (IOException e) {
+            mAwaiting = false;
+            throw e;
+        }
+        // The write returns once the adapter has the frame, not when it has left the wire
+        long sent = Math.max(System.nanoTime(), start + len * mFormat.charTimeNanos());
+        mLastActivity = sent;
+        if (broadcast) {
+            mLastActivity = sent + BROADCAST_DELAY * 1_000_000L;
+            return RESULT_OK;
+        }
+
+        long deadline = sent + RESPONSE_TIMEOUT * 1_000_000L + expected * mFormat.charTimeNanos();
+        synchronized (mResponse) {
+            try {
+                long now;
+                while (mResponseLength < mExpected && (now = System.nanoTime()) < deadline)
+                    mResponse.wait(Math.max(1, (deadline - now) / 1_000_000L));
+            } finally {
+                mAwaiting = false;
+            }
+            if (mResponseLength < mExpected)
+                return RESULT_TIMEOUT;
+            if (!ModbusCrc.check(mResponse, mExpected) || mResponse[0] != mFrame[0] || (mResponse[1] & 0x7F) != mFrame[1])
+                return RESULT_INVALID;
+            if ((mResponse[1] & 0x80) != 0)
+                return Math.max(1, mResponse[2] & 0xFF);
+            return RESULT_OK;
+        }
+    }
+
+    // The clients' data counts as activity too, it isn't Modbus but the units hear it all the same
+    private void waitForSilence() throws InterruptedException {
+        while (true) {
+            long last = mLastActivity;
+            if (mScheduler != null && mScheduler.getLastWrite() - last > 0)
+                last = mScheduler.getLastWrite();
+            long remaining = last + mSilentInterval - System.nanoTime();
+            if (remaining <= 0) return;
+            Thread.sleep(remaining / 1_000_000L, (int) (remaining % 1_000_000L));
+        }
+    }
+
+    private static int cacheKey(int unit, int table, int address) {
+        return unit << 18 | (table - 1) << 16 | address;
+    }
+
+    // All values of the request if every one of them is fresh enough, otherwise null
+    private int[] getCached(ModbusRequest request) {
+        long oldest = System.nanoTime() - request.mMaxAge * 1_000_000L;
+        int[] values = new int[request.mCount];
+        synchronized (mCache) {
+            for (int i = 0; i < request.mCount; i++) {
+                long[] entry = mCache.get(cacheKey(request.mUnit, request.getTable(), request.mAddress + i));
+                if (entry == null || entry[1] - oldest < 0)
+                    return null;
+                values[i] = (int) entry[0];
+            }
+        }
+        return values;
+    }
+
+    private void putCache(int unit, int table, int address, int[] values) {
+        long now = System.nanoTime();
+        synchronized (mCache) {
+            for (int i = 0; i < values.length; i++) {
+                int key = cacheKey(unit, table, address + i);
+                long[] entry = mCache.get(key);
+                if (entry == null)
+                    mCache.put(key, new long[]{values[i], now});
+                else {
+                    entry[0] = values[i];
+                    entry[1] = now;
+                }
+            }
+        }
+    }
+
+    private void invalidate(Batch batch) {
+        ModbusRequest first = batch.mRequests.get(0);
+        synchronized (mCache) {
+            if (batch.mUnit == 0) {
+                // Broadcast, drop the range for all units
+                for (int unit = 1; unit <= 247; unit++)
+                    for (int address = batch.mAddress; address < batch.mEnd; address++)
+                        mCache.remove(cacheKey(unit, first.getTable(), address));
+            } else {
+                for (int address = batch.mAddress; address < batch.mEnd; address++)
+                    mCache.remove(cacheKey(batch.mUnit, first.getTable(), address));
+            }
+        }
+    }
+
+    private static JSONObject createReply(String type, ModbusRequest request) throws JSONException {
+        JSONObject event = ClientEvents.create(type);
+        if (request.mId != null)
+            event.put("id", request.mId);
+        event.put("unit", request.mUnit);
+        event.put("function", request.mFunction);
+        event.put("address", request.mAddress);
+        return event;
+    }
+
+    private static void sendValues(ModbusRequest request, int[] values, int offset, boolean cached) {
+        try {
+            JSONObject event = createReply(ClientEvents.MODBUS, request);
+            JSONArray array = new JSONArray();
+            for (int i = 0; i < request.mCount; i++)
+                array.put(values[offset + i]);
+            event.put("values", array);
+            event.put("cached", cached);
+            ClientEvents.send(request.mConn, event);
+        } catch (JSONException e) {
+            // Can't happen with numbers
+        }
+    }
+
+    private static void sendWritten(ModbusRequest request) {
+        try {
+            JSONObject event = createReply(ClientEvents.MODBUS, request);
+            event.put("count", request.mCount);
+            ClientEvents.send(request.mConn, event);
+        } catch (JSONException e) {
+            // Can't happen with numbers
+        }
+    }
+
+    private static void sendError(WebSocket conn, Object id, String error, String message, int exception) {
+        JSONObject event = ClientEvents.create(ClientEvents.MODBUS_ERROR);
+        try {
+            if (id != null)
+                event.put("id", id);
+            event.put("error", error);
+            if (message != null)
+                event.put("message", message);
+            if (exception > 0)
+                event.put("exception", exception);
+        } catch (JSONException e) {
+            // Can't happen with strings and numbers
+        }
+        ClientEvents.send(conn, event);
+    }
+}
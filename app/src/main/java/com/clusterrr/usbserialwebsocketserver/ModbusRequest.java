@@ -0,0 +1,143 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import org.java_websocket.WebSocket;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// One request from a /modbus client, e.g.
+// {"id": 7, "unit": 1, "function": "read_holding_registers", "address": 100, "count": 10, "max_age": 500}
+// {"id": 8, "unit": 1, "function": "write_register", "address": 100, "value": 1234}
+// "function" is a name or the Modbus function code. "id" is whatever the client wants back.
+// With "max_age" (ms) a read may be answered from values the gateway read that recently.
+public class ModbusRequest {
+    final static int READ_COILS = 1;
+    final static int READ_DISCRETE_INPUTS = 2;
+    final static int READ_HOLDING_REGISTERS = 3;
+    final static int READ_INPUT_REGISTERS = 4;
+    final static int WRITE_COIL = 5;
+    final static int WRITE_REGISTER = 6;
+    final static int WRITE_COILS = 15;
+    final static int WRITE_REGISTERS = 16;
+
+    final static int MAX_READ_BITS = 2000;
+    final static int MAX_READ_REGISTERS = 125;
+    final static int MAX_WRITE_BITS = 1968;
+    final static int MAX_WRITE_REGISTERS = 123;
+
+    final WebSocket mConn;
+    final Object mId;
+    final int mUnit;
+    final int mFunction;
+    final int mAddress;
+    final int mCount;
+    final int[] mValues; // writes only
+    final int mMaxAge;
+
+    private ModbusRequest(WebSocket conn, JSONObject json) throws JSONException {
+        mConn = conn;
+        mId = json.opt("id");
+        mUnit = json.getInt("unit");
+        mFunction = parseFunction(json.get("function"));
+        mAddress = json.getInt("address");
+        mMaxAge = Math.max(0, json.optInt("max_age", 0));
+        if (mUnit < 0 || mUnit > 247)
+            throw new JSONException("Invalid unit " + mUnit);
+        if (isRead()) {
+            mCount = json.optInt("count", 1);
+            mValues = null;
+            if (mCount < 1 || mCount > (isBitTable() ? MAX_READ_BITS : MAX_READ_REGISTERS))
+                throw new JSONException("Invalid count " + mCount);
+            if (mUnit == 0)
+                throw new JSONException("Reads can't be broadcast");
+        } else {
+            JSONArray values = json.optJSONArray("values");
+            if (values == null) {
+                if (mFunction == WRITE_COILS || mFunction == WRITE_REGISTERS)
+                    throw new JSONException("\"values\" missing");
+                mValues = new int[]{parseValue(json.get("value"))};
+            } else {
+                if (mFunction == WRITE_COIL || mFunction == WRITE_REGISTER)
+                    throw new JSONException("Single writes take \"value\"");
+                mValues = new int[values.length()];
+                for (int i = 0; i < mValues.length; i++)
+                    mValues[i] = parseValue(values.get(i));
+            }
+            mCount = mValues.length;
+            if (mCount < 1 || mCount > (isBitTable() ? MAX_WRITE_BITS : MAX_WRITE_REGISTERS))
+                throw new JSONException("Invalid number of values " + mCount);
+        }
+        if (mAddress < 0 || mAddress + mCount > 0x10000)
+            throw new JSONException("Invalid address " + mAddress);
+    }
+
+    public static ModbusRequest fromJson(WebSocket conn, JSONObject json) throws JSONException {
+        return new ModbusRequest(conn, json);
+    }
+
+    private static int parseFunction(Object function) throws JSONException {
+        if (function instanceof Number) {
+            int code = ((Number) function).intValue();
+            switch (code) {
+                case READ_COILS: case READ_DISCRETE_INPUTS: case READ_HOLDING_REGISTERS: case READ_INPUT_REGISTERS:
+                case WRITE_COIL: case WRITE_REGISTER: case WRITE_COILS: case WRITE_REGISTERS:
+                    return code;
+            }
+        } else {
+            switch (function.toString()) {
+                case "read_coils": return READ_COILS;
+                case "read_discrete_inputs": return READ_DISCRETE_INPUTS;
+                case "read_holding_registers": return READ_HOLDING_REGISTERS;
+                case "read_input_registers": return READ_INPUT_REGISTERS;
+                case "write_coil": return WRITE_COIL;
+                case "write_register": return WRITE_REGISTER;
+                case "write_coils": return WRITE_COILS;
+                case "write_registers": return WRITE_REGISTERS;
+            }
+        }
+        throw new JSONException("Unsupported function " + function);
+    }
+
+    // Coils take true/false as well as numbers
+    private int parseValue(Object value) throws JSONException {
+        int v;
+        if (value instanceof Boolean)
+            v = (Boolean) value ? 1 : 0;
+        else if (value instanceof Number)
+            v = ((Number) value).intValue();
+        else
+            throw new JSONException("Invalid value " + value);
+        if (isBitTable())
+            return v != 0 ? 1 : 0;
+        if (v < -0x8000 || v > 0xFFFF)
+            throw new JSONException("Value out of range " + v);
+        return v & 0xFFFF;
+    }
+
+    public boolean isRead() {
+        return mFunction <= READ_INPUT_REGISTERS;
+    }
+
+    // Coils and discrete inputs are bits, the rest are 16 bit registers
+    public boolean isBitTable() {
+        return mFunction == READ_COILS || mFunction == READ_DISCRETE_INPUTS || mFunction == WRITE_COIL || mFunction == WRITE_COILS;
+    }
+
+    // The table the request works on, writes map to the table their reads use
+    public int getTable() {
+        switch (mFunction) {
+            case WRITE_COIL:
+            case WRITE_COILS:
+                return READ_COILS;
+            case WRITE_REGISTER:
+            case WRITE_REGISTERS:
+                return READ_HOLDING_REGISTERS;
+            default:
+                return mFunction;
+        }
+    }
+
+    public int getEnd() {
+        return mAddress + mCount;
+    }
+}
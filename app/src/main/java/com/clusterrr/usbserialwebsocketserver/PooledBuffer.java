@@ -0,0 +1,59 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PooledBuffer {
+    private final BufferPool mPool;
+    private final ByteBuffer mBuffer;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+    private Throwable mAcquiredAt = null;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        mPool = pool;
+        mBuffer = buffer;
+    }
+
+    public ByteBuffer buffer() {
+        return mBuffer;
+    }
+
+    public byte[] array() {
+        return mBuffer.array();
+    }
+
+    public int length() {
+        return mBuffer.limit();
+    }
+
+    public int refCount() {
+        return mRefCount.get();
+    }
+
+    public PooledBuffer retain() {
+        if (mRefCount.getAndIncrement() <= 0)
+            throw new IllegalStateException("Buffer retained after release");
+        return this;
+    }
+
+    public void release() {
+        int refs = mRefCount.decrementAndGet();
+        if (refs > 0) return;
+        if (refs < 0)
+            throw new IllegalStateException("Buffer released too many times");
+        mAcquiredAt = null;
+        if (mPool != null)
+            mPool.recycle(this);
+    }
+
+    Throwable getAcquiredAt() {
+        return mAcquiredAt;
+    }
+
+    void onAcquire() {
+        mBuffer.clear();
+        mRefCount.set(1);
+        if (BuildConfig.DEBUG)
+            mAcquiredAt = new Throwable("Acquired here");
+    }
+}
@@ -0,0 +1,176 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import org.java_websocket.WebSocketAdapter;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WebSocketServerFactory;
+import org.java_websocket.WrappedByteChannel;
+import org.java_websocket.drafts.Draft;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+
+// Wraps the channels created by another factory, so pooled frames queued directly
+// into a connection's outQueue go back to the pool once the selector has written them
+// and taken them off the queue. Each channel keeps its own list of the frames queued,
+// as Java-WebSocket may clear the outQueue without a word, and lets go of all of them
+// when the connection closes.
+public class PooledWebSocketServerFactory implements WebSocketServerFactory {
+    private final WebSocketServerFactory mFactory;
+    private final BufferPool mPool;
+
+    public PooledWebSocketServerFactory(WebSocketServerFactory factory, BufferPool pool) {
+        mFactory = factory;
+        mPool = pool;
+    }
+
+    @Override
+    public WebSocketImpl createWebSocket(WebSocketAdapter a, Draft d) {
+        return mFactory.createWebSocket(a, d);
+    }
+
+    @Override
+    public WebSocketImpl createWebSocket(WebSocketAdapter a, List<Draft> drafts) {
+        return mFactory.createWebSocket(a, drafts);
+    }
+
+    @Override
+    public ByteChannel wrapChannel(SocketChannel channel, SelectionKey key) throws IOException {
+        return new PooledByteChannel(mFactory.wrapChannel(channel, key), mPool);
+    }
+
+    @Override
+    public void close() {
+        mFactory.close();
+    }
+
+    static class PooledByteChannel implements WrappedByteChannel {
+        private final ByteChannel mChannel;
+        private final BufferPool mPool;
+        private final long mAcceptedAt = System.currentTimeMillis();
+        // Frames put into the outQueue and not written yet, in queue order
+        private final ArrayDeque<PooledBuffer> mQueued = new ArrayDeque<>();
+        // Written out, but possibly still the head of the outQueue
+        private PooledBuffer mDrained = null;
+        private boolean mClosed = false;
+
+        PooledByteChannel(ByteChannel channel, BufferPool pool) {
+            mChannel = channel;
+            mPool = pool;
+        }
+
+        long getAcceptedAt() {
+            return mAcceptedAt;
+        }
+
+        // Takes over the reference to frame, which has to go into the outQueue right after.
+        // false when the connection is closed, the caller keeps the frame then.
+        synchronized boolean track(PooledBuffer frame) {
+            if (mClosed) return false;
+            mQueued.add(frame);
+            return true;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            // The selector checks a drained buffer once more and only then polls it off the
+            // outQueue, so it is released on the next call, when it is certainly gone
+            releaseDrained();
+            Tracer.begin(Tracer.SOCKET_WRITE);
+            int written = mChannel.write(src);
+            Tracer.end(Tracer.SOCKET_WRITE, written);
+            if (!src.hasRemaining() && mPool.find(src) != null)
+                onDrained(src);
+            return written;
+        }
+
+        private synchronized void onDrained(ByteBuffer src) {
+            // Frames queued before it that never got here were cleared from the outQueue
+            PooledBuffer frame;
+            while ((frame = mQueued.poll()) != null && frame.buffer() != src)
+                frame.release();
+            mDrained = frame;
+        }
+
+        // The fan-out calls this before taking new frames, so an idle connection doesn't
+        // hold on to its last frame once the selector has polled it off the outQueue
+        void releasePolled(Queue<ByteBuffer> outQueue) {
+            PooledBuffer drained;
+            synchronized (this) {
+                drained = mDrained;
+                if (drained == null || outQueue.peek() == drained.buffer()) return;
+                mDrained = null;
+            }
+            drained.release();
+        }
+
+        private void releaseDrained() {
+            PooledBuffer drained;
+            synchronized (this) {
+                drained = mDrained;
+                mDrained = null;
+            }
+            if (drained != null)
+                drained.release();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return mChannel.read(dst);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return mChannel.isOpen();
+        }
+
+        // Called by closeConnection() after the key is cancelled, the selector is done with
+        // the outQueue then and whatever is still in it will never be written
+        @Override
+        public void close() throws IOException {
+            releaseDrained();
+            synchronized (this) {
+                mClosed = true;
+                PooledBuffer frame;
+                while ((frame = mQueued.poll()) != null)
+                    frame.release();
+            }
+            mChannel.close();
+        }
+
+        @Override
+        public boolean isNeedWrite() {
+            // Only asked when the outQueue is empty
+            releaseDrained();
+            return mChannel instanceof WrappedByteChannel && ((WrappedByteChannel) mChannel).isNeedWrite();
+        }
+
+        @Override
+        public void writeMore() throws IOException {
+            if (mChannel instanceof WrappedByteChannel)
+                ((WrappedByteChannel) mChannel).writeMore();
+        }
+
+        @Override
+        public boolean isNeedRead() {
+            return mChannel instanceof WrappedByteChannel && ((WrappedByteChannel) mChannel).isNeedRead();
+        }
+
+        @Override
+        public int readMore(ByteBuffer dst) throws IOException {
+            return mChannel instanceof WrappedByteChannel ? ((WrappedByteChannel) mChannel).readMore(dst) : 0;
+        }
+
+        @Override
+        public boolean isBlocking() {
+            if (mChannel instanceof WrappedByteChannel)
+                return ((WrappedByteChannel) mChannel).isBlocking();
+            return mChannel instanceof SocketChannel && ((SocketChannel) mChannel).isBlocking();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+
+// Path and query parameters of the URL a client connected to, e.g. "/?weight=2"
+public class ResourceDescriptor {
+    private final String mPath;
+    private final Map<String, String> mParams = new HashMap<>();
+
+    public ResourceDescriptor(String descriptor) {
+        if (descriptor == null || descriptor.isEmpty()) descriptor = "/";
+        int q = descriptor.indexOf('?');
+        mPath = q < 0 ? descriptor : descriptor.substring(0, q);
+        if (q < 0) return;
+        for (String pair : descriptor.substring(q + 1).split("&")) {
+            if (pair.isEmpty()) continue;
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            mParams.put(decode(name), decode(value));
+        }
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return s;
+        }
+    }
+
+    public String getPath() {
+        return mPath.isEmpty() ? "/" : mPath;
+    }
+
+    public String get(String name) {
+        return mParams.get(name);
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = get(name);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public long getLong(String name, long defaultValue) {
+        String value = get(name);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = get(name);
+        if (value == null) return defaultValue;
+        return value.isEmpty() || value.equals("1") || value.equalsIgnoreCase("true");
+    }
+}
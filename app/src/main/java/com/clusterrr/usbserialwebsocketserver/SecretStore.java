@@ -0,0 +1,86 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import android.annotation.TargetApi;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+// Keeps secrets in SharedPreferences encrypted with an AES key that never leaves the
+// Android Keystore. The Keystore can't hold AES keys before Android 6, there secrets
+// aren't stored at all and have to be entered again after the app is restarted.
+public class SecretStore {
+    final static String KEYSTORE = "AndroidKeyStore";
+    final static String KEY_ALIAS = "settings";
+    final static String TRANSFORMATION = "AES/GCM/NoPadding";
+    final static int IV_SIZE = 12;
+    final static int TAG_SIZE = 128; // bits
+
+    private SecretStore() {
+    }
+
+    // "" when nothing is stored or it can't be decrypted anymore
+    public static String get(SharedPreferences prefs, String name) {
+        String stored = prefs.getString(name, "");
+        if (stored.isEmpty() || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return "";
+        try {
+            byte[] data = Base64.decode(stored, Base64.NO_WRAP);
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, getKey(), new GCMParameterSpec(TAG_SIZE, data, 0, IV_SIZE));
+            return new String(cipher.doFinal(data, IV_SIZE, data.length - IV_SIZE), StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException | IOException | IllegalArgumentException e) {
+            Log.e(UsbSerialWebsocketService.TAG, "Can't decrypt " + name + ": " + e.getMessage());
+            return "";
+        }
+    }
+
+    // Stored as the IV followed by the ciphertext, in Base64
+    public static void put(SharedPreferences.Editor editor, String name, String secret) {
+        if (secret.isEmpty() || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            editor.remove(name);
+            return;
+        }
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            // The Keystore picks the IV, it doesn't allow callers to provide one for encryption
+            cipher.init(Cipher.ENCRYPT_MODE, getKey());
+            byte[] iv = cipher.getIV();
+            byte[] encrypted = cipher.doFinal(secret.getBytes(StandardCharsets.UTF_8));
+            byte[] data = new byte[iv.length + encrypted.length];
+            System.arraycopy(iv, 0, data, 0, iv.length);
+            System.arraycopy(encrypted, 0, data, iv.length, encrypted.length);
+            editor.putString(name, Base64.encodeToString(data, Base64.NO_WRAP));
+        } catch (GeneralSecurityException | IOException e) {
+            Log.e(UsbSerialWebsocketService.TAG, "Can't encrypt " + name + ": " + e.getMessage());
+            editor.remove(name);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static SecretKey getKey() throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        keyStore.load(null);
+        KeyStore.Entry entry = keyStore.getEntry(KEY_ALIAS, null);
+        if (entry instanceof KeyStore.SecretKeyEntry)
+            return ((KeyStore.SecretKeyEntry) entry).getSecretKey();
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build());
+        return generator.generateKey();
+    }
+}
@@ -0,0 +1,65 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import android.app.Service;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.IOException;
+
+// For apps that would rather bind a service than know the socket name. Other apps need the
+// SERIAL_BRIDGE permission. The connections it hands out are served by the LocalEndpoint
+// of the running UsbSerialWebsocketService, which it reaches the same way MainActivity does.
+public class SerialBridgeService extends Service {
+    private volatile UsbSerialWebsocketService.ServiceBinder mServiceBinder = null;
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName className, IBinder service) {
+            mServiceBinder = (UsbSerialWebsocketService.ServiceBinder) service;
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mServiceBinder = null;
+        }
+    };
+
+    private final ISerialBridge.Stub mBinder = new ISerialBridge.Stub() {
+        @Override
+        public ParcelFileDescriptor open() {
+            UsbSerialWebsocketService.ServiceBinder serviceBinder = mServiceBinder;
+            LocalEndpoint endpoint = serviceBinder != null ? serviceBinder.getLocalEndpoint() : null;
+            if (endpoint == null) return null;
+            try {
+                return endpoint.openPipe("uid " + Binder.getCallingUid() + " pid " + Binder.getCallingPid());
+            } catch (IOException e) {
+                Log.e(UsbSerialWebsocketService.TAG, "Can't open a local connection: " + e.getMessage());
+                return null;
+            }
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // Doesn't start the server, only follows it
+        bindService(new Intent(this, UsbSerialWebsocketService.class), mServiceConnection, 0);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        unbindService(mServiceConnection);
+        mServiceBinder = null;
+        super.onDestroy();
+    }
+}
@@ -0,0 +1,39 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+// Line settings of the open port and the wire timing derived from them
+public class SerialFormat {
+    public final int baudRate;
+    public final int dataBits;
+    public final int stopBits;
+    public final int parity;
+
+    public SerialFormat(int baudRate, int dataBits, int stopBits, int parity) {
+        this.baudRate = baudRate;
+        this.dataBits = dataBits;
+        this.stopBits = stopBits;
+        this.parity = parity;
+    }
+
+    // Start bit + data bits + parity bit + stop bits, 1.5 stop bits rounded up
+    public int bitsPerChar() {
+        int bits = 1 + dataBits;
+        if (parity != UsbSerialPort.PARITY_NONE) bits++;
+        bits += stopBits == UsbSerialPort.STOPBITS_1 ? 1 : 2;
+        return bits;
+    }
+
+    public int bytesPerSecond() {
+        return Math.max(1, baudRate / bitsPerChar());
+    }
+
+    public long charTimeNanos() {
+        return 1_000_000_000L * bitsPerChar() / Math.max(1, baudRate);
+    }
+
+    // Time the given number of characters occupies the wire
+    public long transmitTimeMillis(int chars) {
+        return (long) chars * bitsPerChar() * 1000L / Math.max(1, baudRate);
+    }
+}
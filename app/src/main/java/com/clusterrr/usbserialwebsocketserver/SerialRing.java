@@ -0,0 +1,159 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Hands the serial reads over from the USB reader to the fan-out thread. One producer and one
+// consumer, so two sequence numbers are all the synchronization it needs: the reader copies
+// each read into the data area, fills in the next slot and publishes it, the consumer hands
+// slots back once it's done with them. Nothing is allocated or locked on either side.
+// A read is never split around the end of the data area, so reads that follow each other
+// are usually contiguous and the consumer can send them on as one chunk.
+// When the fan-out falls a whole ring behind, the reader keeps draining the port anyway,
+// the adapter would drop the data otherwise, and what it can't store is counted.
+public class SerialRing {
+    public enum WaitStrategy {
+        PARK,  // sleeps until the reader wakes it up, the default
+        YIELD, // gives up the CPU between polls
+        SPIN   // keeps a core busy, lowest latency
+    }
+
+    private final byte[] mData;
+    private final int mDataMask;
+    private final int mSlotMask;
+    // Per slot, the position of the read in the data area, counted from the start like mTail
+    private final long[] mPositions;
+    private final int[] mLengths;
+    private final long[] mTimestamps;
+    private volatile WaitStrategy mWaitStrategy = WaitStrategy.PARK;
+
+    // Next slot to publish, written by the reader only
+    private volatile long mTail = 0;
+    // Next slot to consume, written by the consumer only
+    private volatile long mHead = 0;
+    // Where the next read goes, reader only
+    private long mPosition = 0;
+    private volatile Thread mWaiter = null;
+    private volatile boolean mClosed = false;
+
+    // Overflow accounting, written by the reader only
+    private volatile long mOverflows = 0;
+    private volatile long mDroppedBytes = 0;
+    private volatile int mHighWater = 0;
+
+    // Both sizes must be powers of two
+    public SerialRing(int size, int slots) {
+        if (Integer.bitCount(size) != 1 || Integer.bitCount(slots) != 1)
+            throw new IllegalArgumentException("Ring sizes must be powers of two");
+        mData = new byte[size];
+        mDataMask = size - 1;
+        mSlotMask = slots - 1;
+        mPositions = new long[slots];
+        mLengths = new int[slots];
+        mTimestamps = new long[slots];
+    }
+
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        mWaitStrategy = waitStrategy;
+    }
+
+    // Producer: returns false and counts the data as dropped if it doesn't fit
+    public boolean offer(byte[] data, int len, long timestamp) {
+        long tail = mTail;
+        long head = mHead;
+        long position = mPosition;
+        if (len > mData.length - (position & mDataMask))
+            position += mData.length - (position & mDataMask); // skip to the start
+        long oldest = tail == head ? position : mPositions[(int) head & mSlotMask];
+        if (tail - head > mSlotMask || position + len - oldest > mData.length) {
+            mOverflows++;
+            mDroppedBytes += len;
+            return false;
+        }
+        int index = (int) tail & mSlotMask;
+        System.arraycopy(data, 0, mData, (int) position & mDataMask, len);
+        mPositions[index] = position;
+        mLengths[index] = len;
+        mTimestamps[index] = timestamp;
+        mPosition = position + len;
+        if (mPosition - oldest > mHighWater)
+            mHighWater = (int) (mPosition - oldest);
+        // The volatile write publishes the slot, the read after it can't move before it
+        mTail = tail + 1;
+        Thread waiter = mWaiter;
+        if (waiter != null)
+            LockSupport.unpark(waiter);
+        return true;
+    }
+
+    // Consumer: number of slots ready, waits for at least one. 0 once closed and drained.
+    public int await() throws InterruptedException {
+        WaitStrategy waitStrategy = mWaitStrategy;
+        while (true) {
+            int available = (int) (mTail - mHead);
+            if (available > 0) return available;
+            if (mClosed) return 0;
+            if (Thread.interrupted()) throw new InterruptedException();
+            switch (waitStrategy) {
+                case SPIN:
+                    break;
+                case YIELD:
+                    Thread.yield();
+                    break;
+                default:
+                    mWaiter = Thread.currentThread();
+                    // Checked again after announcing ourselves, or a publish in between would be missed
+                    if (mTail == mHead && !mClosed)
+                        LockSupport.park(this);
+                    mWaiter = null;
+                    break;
+            }
+        }
+    }
+
+    // Consumer: the data area, the i-th ready read is at offset(i), valid until release()
+    public byte[] data() {
+        return mData;
+    }
+
+    public int offset(int i) {
+        return (int) mPositions[(int) (mHead + i) & mSlotMask] & mDataMask;
+    }
+
+    public int length(int i) {
+        return mLengths[(int) (mHead + i) & mSlotMask];
+    }
+
+    public long timestamp(int i) {
+        return mTimestamps[(int) (mHead + i) & mSlotMask];
+    }
+
+    // Consumer: gives the first count slots back to the reader
+    public void release(int count) {
+        mHead = mHead + count;
+    }
+
+    // No more data, the consumer drains what's left and await() returns 0
+    public void close() {
+        mClosed = true;
+        Thread waiter = mWaiter;
+        if (waiter != null)
+            LockSupport.unpark(waiter);
+    }
+
+    public int capacity() {
+        return mData.length;
+    }
+
+    public long getOverflows() {
+        return mOverflows;
+    }
+
+    public long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    // Most bytes ever waiting at once
+    public int getHighWater() {
+        return mHighWater;
+    }
+}
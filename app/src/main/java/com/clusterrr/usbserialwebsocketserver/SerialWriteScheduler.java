@@ -0,0 +1,292 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+
+// Sits between the WebSocket clients and the serial port. Small writes from a client with
+// nothing else queued take the interactive lane, everything else is shared between clients
+// with deficit round robin, and the port is fed in short chunks paced to the line rate,
+// so a keystroke never waits behind more than one chunk of somebody's upload.
+public class SerialWriteScheduler extends Thread {
+    final static int INTERACTIVE_MAX_SIZE = 16;
+    final static int QUANTUM = 256; // bytes per round per unit of weight
+    final static int MIN_CHUNK_SIZE = 16;
+    final static int MAX_CHUNK_SIZE = 4096;
+    final static int CHUNK_MILLIS = 20;
+    final static int QUEUE_LIMIT_SECONDS = 60;
+    final static int MIN_QUEUE_LIMIT = 64 * 1024;
+    final static int MAX_REJECTIONS = 3;
+
+    public interface Sink {
+        void write(byte[] data, int len, boolean paced) throws IOException;
+    }
+
+    // Called on the scheduler thread after each chunk of a client's data went to the port
+    public interface Listener {
+        void onWritten(Client client, int written, int queued);
+        void onWriteFailed(Client client, int written, int lost, String error);
+    }
+
+    public enum SubmitResult {
+        ACCEPTED,
+        REJECTED,
+        QUOTA_EXCEEDED
+    }
+
+    public static class Client {
+        private final int mWeight;
+        private final boolean mPaced;
+        private final TokenBucket mBucket;
+        private final int mQueueLimit;
+        private final Listener mListener;
+        private final ArrayDeque<PooledBuffer> mQueue = new ArrayDeque<>();
+        private int mQueued = 0;
+        private int mDeficit = 0;
+        private int mRejections = 0;
+        private boolean mScheduled = false;
+        private boolean mInteractive = false;
+        private boolean mClosed = false;
+
+        private Client(int weight, boolean paced, TokenBucket bucket, int queueLimit, Listener listener) {
+            mWeight = weight;
+            mPaced = paced;
+            mBucket = bucket;
+            mQueueLimit = queueLimit;
+            mListener = listener;
+        }
+
+        public int getQueued() {
+            return mQueued;
+        }
+    }
+
+    private final Sink mSink;
+    private final int mLineRate;
+    private final int mChunkSize;
+    private final TokenBucket mLineBucket;
+    private final byte[] mChunk;
+    private Client mChunkClient = null;
+    private final ArrayDeque<Client> mInteractive = new ArrayDeque<>();
+    private final ArrayDeque<Client> mActive = new ArrayDeque<>();
+    // The thread that has the port to itself, see hold()
+    private Thread mHolder = null;
+    private boolean mWriting = false;
+    // When the last chunk will have left the wire, in System.nanoTime()
+    private volatile long mLastWrite = 0;
+    private volatile boolean mStopped = false;
+
+    public SerialWriteScheduler(Sink sink, SerialFormat format) {
+        super("SerialWriteScheduler");
+        mSink = sink;
+        mLineRate = format.bytesPerSecond();
+        mChunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, mLineRate * CHUNK_MILLIS / 1000));
+        // Enough to keep the adapter busy between two wake ups, not enough to fill its FIFO
+        mLineBucket = new TokenBucket(mLineRate, mChunkSize * 2L);
+        mChunk = new byte[mChunkSize];
+    }
+
+    public int getLineRate() {
+        return mLineRate;
+    }
+
+    // rate is in bytes per second, 0 means the full line rate. paced applies the character
+    // and line delays to the client's data, for text typed by people. listener may be null.
+    public Client register(int weight, int rate, boolean paced, Listener listener) {
+        int clientRate = rate > 0 ? Math.min(rate, mLineRate) : mLineRate;
+        int queueLimit = Math.max(MIN_QUEUE_LIMIT, clientRate * QUEUE_LIMIT_SECONDS);
+        return new Client(Math.max(1, weight), paced, new TokenBucket(clientRate, clientRate), queueLimit, listener);
+    }
+
+    // While held nothing is written, the clients' data waits in their queues. Returns once
+    // the chunk being written, if any, is out and no other thread holds the port, so the
+    // caller has it to itself until the same thread lets go.
+    public synchronized void hold(boolean held) throws InterruptedException {
+        Thread current = Thread.currentThread();
+        if (!held) {
+            if (mHolder == current) {
+                mHolder = null;
+                notifyAll();
+            }
+            return;
+        }
+        while (mHolder != null && mHolder != current)
+            wait();
+        mHolder = current;
+        while (mWriting)
+            wait();
+    }
+
+    public long getLastWrite() {
+        return mLastWrite;
+    }
+
+    public synchronized void unregister(Client client) {
+        client.mClosed = true;
+        mInteractive.remove(client);
+        mActive.remove(client);
+        drain(client);
+    }
+
+    // Checks whether a message of the given size fits the client's quota.
+    // Must be followed by enqueue() calls for exactly that many bytes if accepted.
+    public synchronized SubmitResult admit(Client client, int len) {
+        if (client.mClosed) return SubmitResult.REJECTED;
+        if (client.mQueued + len > client.mQueueLimit) {
+            client.mRejections++;
+            return client.mRejections >= MAX_REJECTIONS ? SubmitResult.QUOTA_EXCEEDED : SubmitResult.REJECTED;
+        }
+        client.mRejections = 0;
+        client.mQueued += len;
+        return SubmitResult.ACCEPTED;
+    }
+
+    // Takes over the reference to buffer, its remaining bytes are written to the port
+    public synchronized void enqueue(Client client, PooledBuffer buffer) {
+        if (client.mClosed || mStopped) {
+            buffer.release();
+            return;
+        }
+        int len = buffer.buffer().remaining();
+        boolean idle = client.mQueue.isEmpty();
+        client.mQueue.add(buffer);
+        if (idle && len <= INTERACTIVE_MAX_SIZE && client.mBucket.available() >= len) {
+            client.mInteractive = true;
+            mInteractive.add(client);
+        } else if (!client.mScheduled && !client.mInteractive) {
+            client.mScheduled = true;
+            mActive.add(client);
+        }
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!mStopped) {
+                int len;
+                Client client;
+                int queued;
+                synchronized (this) {
+                    if (mWriting) {
+                        mWriting = false;
+                        notifyAll();
+                    }
+                    len = mHolder != null ? 0 : nextChunk();
+                    if (len <= 0) {
+                        if (len < 0) wait(-len); else wait();
+                        continue;
+                    }
+                    client = mChunkClient;
+                    queued = client.mQueued;
+                    mWriting = true;
+                }
+                long start = System.nanoTime();
+                try {
+                    mSink.write(mChunk, len, client.mPaced);
+                    // The write returns once the adapter has the chunk, not when it has left the wire
+                    mLastWrite = Math.max(System.nanoTime(), start + len * 1_000_000_000L / mLineRate);
+                    if (client.mListener != null)
+                        client.mListener.onWritten(client, len, queued);
+                } catch (IOException e) {
+                    Log.e(UsbSerialWebsocketService.TAG, "Serial write failed: " + e.getMessage());
+                    int written = e instanceof InterruptedIOException ? ((InterruptedIOException) e).bytesTransferred : 0;
+                    if (client.mListener != null)
+                        client.mListener.onWriteFailed(client, written, len - written, e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopping
+        }
+        synchronized (this) {
+            mWriting = false;
+            notifyAll();
+            for (Client client : mActive) drain(client);
+            for (Client client : mInteractive) drain(client);
+            mActive.clear();
+            mInteractive.clear();
+        }
+    }
+
+    public void close() {
+        mStopped = true;
+        interrupt();
+    }
+
+    // Copies the next chunk to send into mChunk and returns its length.
+    // Returns 0 when idle or -N to wait N milliseconds for tokens.
+    private int nextChunk() {
+        Client interactive = mInteractive.peek();
+        if (interactive != null) {
+            PooledBuffer head = interactive.mQueue.peek();
+            int len = head.buffer().remaining();
+            long wait = mLineBucket.waitMillis(len);
+            if (wait > 0) return (int) -wait;
+            mInteractive.poll();
+            interactive.mInteractive = false;
+            take(interactive, len);
+            if (!interactive.mQueue.isEmpty() && !interactive.mScheduled) {
+                interactive.mScheduled = true;
+                mActive.add(interactive);
+            }
+            return len;
+        }
+
+        long minWait = Long.MAX_VALUE;
+        int limited = 0;
+        while (!mActive.isEmpty() && limited < mActive.size()) {
+            Client client = mActive.peek();
+            PooledBuffer head = client.mQueue.peek();
+            int len = Math.min(mChunkSize, head.buffer().remaining());
+            long clientWait = client.mBucket.waitMillis(len);
+            if (clientWait > 0) {
+                // Over its own rate, let the others go first
+                minWait = Math.min(minWait, clientWait);
+                mActive.add(mActive.poll());
+                limited++;
+                continue;
+            }
+            limited = 0;
+            if (client.mDeficit < len) {
+                client.mDeficit += QUANTUM * client.mWeight;
+                mActive.add(mActive.poll());
+                continue;
+            }
+            long lineWait = mLineBucket.waitMillis(len);
+            if (lineWait > 0) return (int) -lineWait;
+            client.mDeficit -= len;
+            take(client, len);
+            if (client.mQueue.isEmpty()) {
+                mActive.poll();
+                client.mScheduled = false;
+                client.mDeficit = 0;
+            }
+            return len;
+        }
+        return minWait == Long.MAX_VALUE ? 0 : (int) -minWait;
+    }
+
+    private void take(Client client, int len) {
+        mChunkClient = client;
+        PooledBuffer head = client.mQueue.peek();
+        head.buffer().get(mChunk, 0, len);
+        if (!head.buffer().hasRemaining()) {
+            client.mQueue.poll();
+            head.release();
+        }
+        client.mQueued -= len;
+        client.mBucket.consume(len);
+        mLineBucket.consume(len);
+    }
+
+    private void drain(Client client) {
+        PooledBuffer buffer;
+        while ((buffer = client.mQueue.poll()) != null)
+            buffer.release();
+        client.mQueued = 0;
+        client.mScheduled = false;
+        client.mInteractive = false;
+    }
+}
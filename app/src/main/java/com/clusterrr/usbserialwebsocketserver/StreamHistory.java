@@ -0,0 +1,95 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import java.nio.ByteBuffer;
+
+// The most recent chunks read from the port with their sequence numbers and timestamps,
+// so a client coming back after a network hiccup can catch up on what it missed.
+// Bounded in bytes and in chunks, the oldest chunks go first. Everything is preallocated.
+// Not thread safe, callers synchronize.
+public class StreamHistory {
+    // Sequence numbers start over with every history, i.e. every time the service starts
+    private final long mStreamId = System.currentTimeMillis();
+    private final byte[] mData;
+    private final int[] mOffsets;
+    private final int[] mLengths;
+    private final long[] mTimestamps;
+    private long mFirstSeq = 0; // oldest chunk still held
+    private long mNextSeq = 0;
+    private int mDataStart = 0;
+    private int mDataUsed = 0;
+
+    public StreamHistory(int size, int chunks) {
+        mData = new byte[size];
+        mOffsets = new int[chunks];
+        mLengths = new int[chunks];
+        mTimestamps = new long[chunks];
+    }
+
+    // Tells the numbering of this history apart from the one before a restart
+    public long getStreamId() {
+        return mStreamId;
+    }
+
+    // Sequence number the next chunk will get
+    public long getNextSeq() {
+        return mNextSeq;
+    }
+
+    // Oldest sequence number that can still be replayed, getNextSeq() when empty
+    public long getFirstSeq() {
+        return mFirstSeq;
+    }
+
+    // Stores a chunk and returns its sequence number
+    public long append(byte[] data, int offset, int len, long timestamp) {
+        long seq = mNextSeq++;
+        if (len > mData.length) {
+            // Can't keep it, and what came before it would be out of order
+            mFirstSeq = mNextSeq;
+            mDataStart = 0;
+            mDataUsed = 0;
+            return seq;
+        }
+        while (mFirstSeq < seq && (mDataUsed + len > mData.length || seq - mFirstSeq >= mOffsets.length))
+            dropOldest();
+        int offsetInRing = (mDataStart + mDataUsed) % mData.length;
+        int first = Math.min(len, mData.length - offsetInRing);
+        System.arraycopy(data, offset, mData, offsetInRing, first);
+        System.arraycopy(data, offset + first, mData, 0, len - first);
+        int slot = slot(seq);
+        mOffsets[slot] = offsetInRing;
+        mLengths[slot] = len;
+        mTimestamps[slot] = timestamp;
+        mDataUsed += len;
+        return seq;
+    }
+
+    private void dropOldest() {
+        int slot = slot(mFirstSeq);
+        mDataStart = (mDataStart + mLengths[slot]) % mData.length;
+        mDataUsed -= mLengths[slot];
+        mFirstSeq++;
+    }
+
+    public int getLength(long seq) {
+        return mLengths[slot(seq)];
+    }
+
+    public long getTimestamp(long seq) {
+        return mTimestamps[slot(seq)];
+    }
+
+    // Puts the chunk's bytes into dst, seq must be between getFirstSeq() and getNextSeq()
+    public void get(long seq, ByteBuffer dst) {
+        int slot = slot(seq);
+        int offset = mOffsets[slot];
+        int len = mLengths[slot];
+        int first = Math.min(len, mData.length - offset);
+        dst.put(mData, offset, first);
+        dst.put(mData, 0, len - first);
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % mOffsets.length);
+    }
+}
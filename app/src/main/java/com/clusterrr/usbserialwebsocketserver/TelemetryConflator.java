@@ -0,0 +1,329 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.java_websocket.WebSocket;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+// Keeps the last value of every key the telemetry formats find in the serial lines, and sends
+// clients connected to /telemetry?rate=10 what changed at their own rate instead of every chunk.
+// A client gets the whole state right away, then the changed keys ("mode=delta", the default)
+// or everything ("mode=snapshot") whenever something changed, "keys=a,b" limits it to these keys.
+// A client that hasn't taken the last update off the socket yet is skipped, so the values
+// it misses are merged into the next one and a slow client gets fewer updates, not older ones.
+public class TelemetryConflator extends Thread {
+    final static String PATH = "/telemetry";
+    final static String FILE_NAME = "telemetry.json";
+    final static String MODE_DELTA = "delta";
+    final static String MODE_SNAPSHOT = "snapshot";
+    final static int DEFAULT_RATE = 10; // Hz
+    final static int MAX_RATE = 100; // Hz
+    final static int MAX_FORMATS = 16;
+    final static int MAX_KEYS = 1024;
+    final static int MAX_LINE_LENGTH = 1024;
+
+    private static class Value {
+        Object mValue;
+        long mVersion;
+        long mTime; // when it last changed
+    }
+
+    private class Subscriber {
+        final WebSocket mConn;
+        final long mInterval; // ns
+        final boolean mDelta;
+        final Set<String> mKeys; // null for all
+        long mVersion = 0;
+        long mDue;
+
+        Subscriber(WebSocket conn, ResourceDescriptor descriptor) {
+            mConn = conn;
+            int rate = descriptor.getInt("rate", DEFAULT_RATE);
+            if (rate < 1 || rate > MAX_RATE)
+                throw new IllegalArgumentException("Rate must be 1 to " + MAX_RATE + " Hz");
+            mInterval = 1_000_000_000L / rate;
+            String mode = descriptor.get("mode");
+            if (mode == null) mode = MODE_DELTA;
+            if (!mode.equals(MODE_DELTA) && !mode.equals(MODE_SNAPSHOT))
+                throw new IllegalArgumentException("Unknown mode " + mode);
+            mDelta = mode.equals(MODE_DELTA);
+            String keys = descriptor.get("keys");
+            if (keys != null && !keys.isEmpty()) {
+                mKeys = new HashSet<>();
+                Collections.addAll(mKeys, keys.split(","));
+            } else {
+                mKeys = null;
+            }
+        }
+    }
+
+    // Guarded by this, like the subscriber list
+    private final HashMap<String, Value> mValues = new HashMap<>();
+    private long mVersion = 0;
+    private volatile Subscriber[] mSubscribers = new Subscriber[0];
+    private volatile List<TelemetryFormat> mFormats = Collections.emptyList();
+    private volatile boolean mStopped = false;
+
+    // Line assembly and parsing, fan-out thread only
+    private final byte[] mLine = new byte[MAX_LINE_LENGTH];
+    private int mLineLength = 0;
+    private boolean mOverlong = false;
+    private final List<String> mKeys = new ArrayList<>();
+    private final List<Object> mParsed = new ArrayList<>();
+    private final TelemetryFormat.Sink mSink = (key, value) -> {
+        mKeys.add(key);
+        mParsed.add(value);
+    };
+    private boolean mKeysExceeded = false;
+
+    public TelemetryConflator() {
+        super("TelemetryConflator");
+    }
+
+    public List<TelemetryFormat> getFormats() {
+        return mFormats;
+    }
+
+    // An empty list turns the parsing off, the values already cached stay
+    public void setFormats(List<TelemetryFormat> formats) {
+        mFormats = formats == null ? Collections.emptyList() : formats;
+    }
+
+    // Called on the fan-out thread with everything read from the port
+    public void onSerialData(byte[] data, int offset, int len) {
+        List<TelemetryFormat> formats = mFormats;
+        if (formats.isEmpty()) {
+            mLineLength = 0;
+            return;
+        }
+        for (int i = offset; i < offset + len; i++) {
+            byte b = data[i];
+            if (b == '\n') {
+                if (!mOverlong)
+                    parseLine(formats);
+                mLineLength = 0;
+                mOverlong = false;
+            } else if (mLineLength < mLine.length) {
+                mLine[mLineLength++] = b;
+            } else {
+                mOverlong = true;
+            }
+        }
+    }
+
+    private void parseLine(List<TelemetryFormat> formats) {
+        int len = mLineLength;
+        if (len > 0 && mLine[len - 1] == '\r') len--;
+        if (len == 0) return;
+        String line = new String(mLine, 0, len, StandardCharsets.UTF_8);
+        mKeys.clear();
+        mParsed.clear();
+        // The first format that finds anything takes the line
+        for (TelemetryFormat format : formats) {
+            if (format.parse(line, mSink) > 0) break;
+        }
+        if (mKeys.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (int i = 0; i < mKeys.size(); i++) {
+                String key = mKeys.get(i);
+                Object value = mParsed.get(i);
+                Value cached = mValues.get(key);
+                if (cached == null) {
+                    if (mValues.size() >= MAX_KEYS) {
+                        if (!mKeysExceeded)
+                            Log.w(UsbSerialWebsocketService.TAG, "Telemetry has more than " + MAX_KEYS + " keys, ignoring new ones");
+                        mKeysExceeded = true;
+                        continue;
+                    }
+                    cached = new Value();
+                    mValues.put(key, cached);
+                } else if (isSame(cached.mValue, value)) {
+                    continue;
+                }
+                cached.mValue = value;
+                cached.mVersion = ++mVersion;
+                cached.mTime = now;
+            }
+        }
+    }
+
+    // Arrays and objects are parsed anew from every line, only their contents can be compared
+    private static boolean isSame(Object cached, Object value) {
+        if (cached instanceof JSONArray || cached instanceof JSONObject)
+            return value != null && cached.getClass() == value.getClass() && cached.toString().equals(value.toString());
+        return Objects.equals(cached, value);
+    }
+
+    // Sends the whole state right away, throws IllegalArgumentException for invalid parameters
+    public void subscribe(WebSocket conn, ResourceDescriptor descriptor) {
+        Subscriber subscriber = new Subscriber(conn, descriptor);
+        synchronized (this) {
+            // Sent under the lock and before the subscriber is listed, so nothing can overtake it
+            ClientEvents.send(conn, update(subscriber, true, true));
+            subscriber.mDue = System.nanoTime() + subscriber.mInterval;
+            Subscriber[] subscribers = new Subscriber[mSubscribers.length + 1];
+            System.arraycopy(mSubscribers, 0, subscribers, 0, mSubscribers.length);
+            subscribers[mSubscribers.length] = subscriber;
+            mSubscribers = subscribers;
+            notify();
+        }
+    }
+
+    public synchronized void unsubscribe(WebSocket conn) {
+        for (int i = 0; i < mSubscribers.length; i++) {
+            if (mSubscribers[i].mConn != conn) continue;
+            Subscriber[] subscribers = new Subscriber[mSubscribers.length - 1];
+            System.arraycopy(mSubscribers, 0, subscribers, 0, i);
+            System.arraycopy(mSubscribers, i + 1, subscribers, i, mSubscribers.length - i - 1);
+            mSubscribers = subscribers;
+            return;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!mStopped) {
+                long now = System.nanoTime();
+                long wait = Long.MAX_VALUE;
+                Subscriber[] subscribers = mSubscribers;
+                for (Subscriber subscriber : subscribers) {
+                    if (subscriber.mDue - now <= 0) {
+                        flush(subscriber);
+                        subscriber.mDue += subscriber.mInterval;
+                        // Don't try to catch up after a stall
+                        if (subscriber.mDue - now <= 0)
+                            subscriber.mDue = now + subscriber.mInterval;
+                    }
+                    wait = Math.min(wait, subscriber.mDue - now);
+                }
+                synchronized (this) {
+                    if (mStopped) break;
+                    // Subscribed after the list was taken, its notify() came before this wait()
+                    if (subscribers != mSubscribers) continue;
+                    if (wait == Long.MAX_VALUE)
+                        wait();
+                    else
+                        wait(wait / 1_000_000L + 1);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopping
+        }
+    }
+
+    private void flush(Subscriber subscriber) {
+        WebSocket conn = subscriber.mConn;
+        // Still busy with the last one, what changed meanwhile goes out with the next
+        if (!conn.isOpen() || conn.hasBufferedData()) return;
+        String event;
+        synchronized (this) {
+            if (subscriber.mVersion == mVersion) return;
+            event = update(subscriber, !subscriber.mDelta, false);
+        }
+        if (event != null)
+            ClientEvents.send(conn, event);
+    }
+
+    // Caller holds the lock. Keys the subscriber has the latest version of are left out unless full,
+    // null when none of its keys changed and it isn't forced.
+    private String update(Subscriber subscriber, boolean full, boolean force) {
+        JSONObject values = new JSONObject();
+        JSONObject times = new JSONObject();
+        boolean changed = false;
+        try {
+            for (Map.Entry<String, Value> entry : mValues.entrySet()) {
+                Value value = entry.getValue();
+                if (subscriber.mKeys != null && !subscriber.mKeys.contains(entry.getKey())) continue;
+                boolean newer = value.mVersion > subscriber.mVersion;
+                changed |= newer;
+                if (!full && !newer) continue;
+                values.put(entry.getKey(), value.mValue);
+                times.put(entry.getKey(), value.mTime);
+            }
+        } catch (JSONException e) {
+            // Can't happen with non-null keys
+        }
+        subscriber.mVersion = mVersion;
+        if (!changed && !force) return null;
+        JSONObject event = ClientEvents.create(ClientEvents.TELEMETRY);
+        try {
+            event.put("full", full);
+            event.put("values", values);
+            event.put("times", times);
+        } catch (JSONException e) {
+            // Can't happen with non-null keys
+        }
+        return event.toString();
+    }
+
+    public void close() {
+        synchronized (this) {
+            mStopped = true;
+            notify();
+        }
+    }
+
+    public static List<TelemetryFormat> fromJson(JSONArray json) throws JSONException {
+        if (json.length() > MAX_FORMATS)
+            throw new JSONException("Too many formats, the limit is " + MAX_FORMATS);
+        List<TelemetryFormat> formats = new ArrayList<>();
+        for (int i = 0; i < json.length(); i++)
+            formats.add(TelemetryFormat.fromJson(json.getJSONObject(i)));
+        return Collections.unmodifiableList(formats);
+    }
+
+    public static JSONArray toJson(List<TelemetryFormat> formats) {
+        JSONArray json = new JSONArray();
+        for (TelemetryFormat format : formats)
+            json.put(format.toJson());
+        return json;
+    }
+
+    // null when no formats were saved or the file is broken
+    public static List<TelemetryFormat> load(Context context) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        if (!file.exists()) return null;
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int pos = 0;
+            int l;
+            while (pos < data.length && (l = in.read(data, pos, data.length - pos)) > 0)
+                pos += l;
+            return fromJson(new JSONArray(new String(data, 0, pos, StandardCharsets.UTF_8)));
+        } catch (IOException | JSONException e) {
+            Log.e(UsbSerialWebsocketService.TAG, "Can't load telemetry formats: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public static void save(Context context, List<TelemetryFormat> formats) throws IOException {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        File tmp = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(toJson(formats).toString().getBytes(StandardCharsets.UTF_8));
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Can't rename " + tmp + " to " + file);
+    }
+}
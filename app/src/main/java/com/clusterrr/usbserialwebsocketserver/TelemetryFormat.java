@@ -0,0 +1,159 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+
+// How to read values out of a line of telemetry, e.g.
+//   {"type": "key_value"}                               temp=21.5 hum=40
+//   {"type": "csv", "columns": ["temp", "", "hum"]}     21.5,ignored,40
+//   {"type": "json"}                                    {"temp": 21.5, "env": {"hum": 40}}
+// "prefix" limits a format to the lines starting with it and is cut off before parsing.
+// key_value splits on any of "separators" (", ;\t" by default) and then on "assign" ("=").
+// csv splits on "delimiter" (","), columns without a name are skipped.
+// json flattens nested objects into keys like "env.hum".
+// Numbers become numbers, everything else stays text.
+public class TelemetryFormat {
+    final static String TYPE_KEY_VALUE = "key_value";
+    final static String TYPE_CSV = "csv";
+    final static String TYPE_JSON = "json";
+    final static int MAX_DEPTH = 8;
+
+    // Receives the values of a line
+    public interface Sink {
+        void put(String key, Object value);
+    }
+
+    public final String type;
+    public final String prefix;
+    private final String mSeparators;
+    private final char mAssign;
+    private final char mDelimiter;
+    private final String[] mColumns;
+    private final JSONObject mJson;
+
+    private TelemetryFormat(JSONObject json) throws JSONException {
+        mJson = json;
+        type = json.getString("type");
+        prefix = json.optString("prefix", "");
+        mSeparators = json.optString("separators", ", ;\t");
+        mAssign = single(json.optString("assign", "="), "assign");
+        mDelimiter = single(json.optString("delimiter", ","), "delimiter");
+        switch (type) {
+            case TYPE_KEY_VALUE:
+                if (mSeparators.isEmpty())
+                    throw new JSONException("Separators can't be empty");
+                mColumns = null;
+                break;
+            case TYPE_CSV:
+                JSONArray columns = json.getJSONArray("columns");
+                mColumns = new String[columns.length()];
+                for (int i = 0; i < columns.length(); i++)
+                    mColumns[i] = columns.getString(i);
+                break;
+            case TYPE_JSON:
+                mColumns = null;
+                break;
+            default:
+                throw new JSONException("Unknown format type " + type);
+        }
+    }
+
+    public static TelemetryFormat fromJson(JSONObject json) throws JSONException {
+        return new TelemetryFormat(json);
+    }
+
+    public JSONObject toJson() {
+        return mJson;
+    }
+
+    // Returns the number of values found
+    public int parse(String line, Sink sink) {
+        if (!line.startsWith(prefix)) return 0;
+        switch (type) {
+            case TYPE_KEY_VALUE:
+                return parseKeyValue(line, prefix.length(), sink);
+            case TYPE_CSV:
+                return parseCsv(line, prefix.length(), sink);
+            default:
+                try {
+                    return flatten(new JSONObject(line.substring(prefix.length())), "", 0, sink);
+                } catch (JSONException e) {
+                    return 0;
+                }
+        }
+    }
+
+    private int parseKeyValue(String line, int pos, Sink sink) {
+        int count = 0;
+        int length = line.length();
+        while (pos < length) {
+            while (pos < length && mSeparators.indexOf(line.charAt(pos)) >= 0)
+                pos++;
+            int end = pos;
+            while (end < length && mSeparators.indexOf(line.charAt(end)) < 0)
+                end++;
+            int assign = line.indexOf(mAssign, pos);
+            if (assign > pos && assign < end) {
+                sink.put(line.substring(pos, assign), value(line.substring(assign + 1, end)));
+                count++;
+            }
+            pos = end;
+        }
+        return count;
+    }
+
+    private int parseCsv(String line, int pos, Sink sink) {
+        int count = 0;
+        for (int column = 0; column < mColumns.length && pos <= line.length(); column++) {
+            int end = line.indexOf(mDelimiter, pos);
+            if (end < 0) end = line.length();
+            if (!mColumns[column].isEmpty()) {
+                sink.put(mColumns[column], value(line.substring(pos, end).trim()));
+                count++;
+            }
+            pos = end + 1;
+        }
+        return count;
+    }
+
+    private static int flatten(JSONObject json, String path, int depth, Sink sink) throws JSONException {
+        int count = 0;
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = json.get(key);
+            if (value instanceof JSONObject && depth < MAX_DEPTH) {
+                count += flatten((JSONObject) value, path + key + ".", depth + 1, sink);
+            } else {
+                sink.put(path + key, value);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Object value(String text) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            // Not an integer
+        }
+        try {
+            double value = Double.parseDouble(text);
+            // NaN and infinities aren't valid JSON
+            if (!Double.isNaN(value) && !Double.isInfinite(value)) return value;
+        } catch (NumberFormatException e) {
+            // Not a number
+        }
+        return text;
+    }
+
+    private static char single(String value, String name) throws JSONException {
+        if (value.length() != 1)
+            throw new JSONException("\"" + name + "\" must be a single character");
+        return value.charAt(0);
+    }
+}
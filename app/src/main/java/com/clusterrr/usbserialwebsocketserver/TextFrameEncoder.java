@@ -0,0 +1,111 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import java.nio.ByteBuffer;
+
+// Builds complete, unmasked RFC 6455 text frames straight from serial bytes.
+// Invalid UTF-8 is replaced with U+FFFD, like new String(..., "UTF-8") did before,
+// and a multi-byte sequence split between two reads is carried over to the next frame.
+public class TextFrameEncoder {
+    final static int MAX_HEADER_SIZE = 4; // payload is always shorter than 64K
+
+    private static final byte[] REPLACEMENT = { (byte) 0xEF, (byte) 0xBF, (byte) 0xBD };
+
+    private final byte[] mCarry = new byte[3];
+    private int mCarryLength = 0;
+
+    // Worst case frame size for a chunk of the given length
+    public static int maxFrameSize(int len) {
+        return MAX_HEADER_SIZE + (len + 3) * REPLACEMENT.length;
+    }
+
+    public void reset() {
+        mCarryLength = 0;
+    }
+
+    // Writes one frame into dst starting at its current position and flips it.
+    // Returns false if there was nothing complete to send yet.
+    public boolean encode(byte[] data, int offset, int len, ByteBuffer dst) {
+        int start = dst.position();
+        dst.position(start + MAX_HEADER_SIZE);
+        int total = mCarryLength + len;
+        int i = 0;
+        int carry = 0;
+        while (i < total) {
+            int b = byteAt(data, offset, i) & 0xFF;
+            if (b < 0x80) {
+                dst.put((byte) b);
+                i++;
+                continue;
+            }
+            int size = sequenceLength(b);
+            if (size == 0) {
+                dst.put(REPLACEMENT);
+                i++;
+                continue;
+            }
+            int valid = 1;
+            while (valid < size && i + valid < total && isContinuation(b, valid, byteAt(data, offset, i + valid) & 0xFF))
+                valid++;
+            if (valid == size) {
+                for (int j = 0; j < size; j++)
+                    dst.put(byteAt(data, offset, i + j));
+                i += size;
+            } else if (i + valid == total) {
+                // Incomplete sequence at the end of the chunk, wait for the rest
+                carry = valid;
+                break;
+            } else {
+                dst.put(REPLACEMENT);
+                i++;
+            }
+        }
+        // Keep the tail before the carry buffer itself is overwritten
+        for (int j = 0; j < carry; j++)
+            mCarry[j] = byteAt(data, offset, i + j);
+        mCarryLength = carry;
+
+        int payload = dst.position() - start - MAX_HEADER_SIZE;
+        if (payload == 0) {
+            dst.position(start);
+            dst.flip();
+            return false;
+        }
+        int end = dst.position();
+        // Header is written right-aligned in the reserved space
+        int headerSize = payload < 126 ? 2 : 4;
+        int headerStart = start + MAX_HEADER_SIZE - headerSize;
+        dst.put(headerStart, (byte) 0x81); // FIN + text
+        if (headerSize == 2) {
+            dst.put(headerStart + 1, (byte) payload);
+        } else {
+            dst.put(headerStart + 1, (byte) 126);
+            dst.put(headerStart + 2, (byte) (payload >> 8));
+            dst.put(headerStart + 3, (byte) payload);
+        }
+        dst.limit(end);
+        dst.position(headerStart);
+        return true;
+    }
+
+    private byte byteAt(byte[] data, int offset, int i) {
+        return i < mCarryLength ? mCarry[i] : data[offset + i - mCarryLength];
+    }
+
+    private static int sequenceLength(int b) {
+        if (b >= 0xC2 && b <= 0xDF) return 2;
+        if (b >= 0xE0 && b <= 0xEF) return 3;
+        if (b >= 0xF0 && b <= 0xF4) return 4;
+        return 0;
+    }
+
+    private static boolean isContinuation(int lead, int index, int b) {
+        if (index == 1) {
+            // Reject overlong forms, surrogates and code points above U+10FFFF
+            if (lead == 0xE0) return b >= 0xA0 && b <= 0xBF;
+            if (lead == 0xED) return b >= 0x80 && b <= 0x9F;
+            if (lead == 0xF0) return b >= 0x90 && b <= 0xBF;
+            if (lead == 0xF4) return b >= 0x80 && b <= 0x8F;
+        }
+        return (b & 0xC0) == 0x80;
+    }
+}
@@ -0,0 +1,132 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import org.java_websocket.WebSocketServerFactory;
+import org.java_websocket.server.SSLParametersWebSocketServerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+
+public class TlsServerFactory {
+    final static String KEYSTORE_FILE = "keystore";
+    final static int SESSION_CACHE_SIZE = 256;
+    final static int SESSION_TIMEOUT = 24 * 60 * 60; // seconds
+
+    private static final String[] AES_GCM_SUITES = {
+            "TLS_AES_128_GCM_SHA256",
+            "TLS_AES_256_GCM_SHA384",
+            "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+    };
+    private static final String[] CHACHA20_SUITES = {
+            "TLS_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256",
+    };
+
+    private TlsServerFactory() {
+    }
+
+    public static File getKeystoreFile(Context context) {
+        return new File(context.getFilesDir(), KEYSTORE_FILE);
+    }
+
+    public static WebSocketServerFactory create(Context context, String password) throws IOException, GeneralSecurityException {
+        File file = getKeystoreFile(context);
+        if (!file.exists())
+            throw new IOException(context.getString(R.string.keystore_not_imported));
+        char[] pass = password.toCharArray();
+        KeyStore keyStore = loadKeyStore(file, pass);
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, pass);
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(kmf.getKeyManagers(), null, null);
+        // Resumed sessions skip the certificate exchange and key agreement. TLS 1.2 clients
+        // resume from this cache, TLS 1.3 clients present the ticket the provider issued them.
+        SSLSessionContext sessions = sslContext.getServerSessionContext();
+        sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(SESSION_TIMEOUT);
+
+        SSLEngine engine = sslContext.createSSLEngine();
+        SSLParameters params = sslContext.getDefaultSSLParameters();
+        params.setCipherSuites(orderCipherSuites(engine.getSupportedCipherSuites(), engine.getEnabledCipherSuites(), hasAesHardware()));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+            params.setUseCipherSuitesOrder(true);
+        return new SSLParametersWebSocketServerFactory(sslContext, params);
+    }
+
+    private static KeyStore loadKeyStore(File file, char[] password) throws IOException, GeneralSecurityException {
+        GeneralSecurityException error = null;
+        for (String type : new String[] { "PKCS12", "BKS" }) {
+            try (InputStream in = new FileInputStream(file)) {
+                KeyStore keyStore = KeyStore.getInstance(type);
+                keyStore.load(in, password);
+                return keyStore;
+            } catch (GeneralSecurityException e) {
+                error = e;
+            } catch (IOException e) {
+                // Wrong type or wrong password, try the next type
+                error = new GeneralSecurityException(e.getMessage(), e);
+            }
+        }
+        throw error;
+    }
+
+    // AES-GCM is fastest with the ARMv8/AES-NI instructions, ChaCha20 wins without them
+    static String[] orderCipherSuites(String[] supported, String[] enabled, boolean aesHardware) {
+        List<String> supportedList = Arrays.asList(supported);
+        List<String> ordered = new ArrayList<>();
+        String[][] preferred = aesHardware ?
+                new String[][] { AES_GCM_SUITES, CHACHA20_SUITES } :
+                new String[][] { CHACHA20_SUITES, AES_GCM_SUITES };
+        for (String[] group : preferred) {
+            for (String suite : group) {
+                if (supportedList.contains(suite))
+                    ordered.add(suite);
+            }
+        }
+        for (String suite : enabled) {
+            if (!ordered.contains(suite))
+                ordered.add(suite);
+        }
+        return ordered.toArray(new String[0]);
+    }
+
+    static boolean hasAesHardware() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/cpuinfo"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // "Features" on ARM, "flags" on x86
+                if (!line.startsWith("Features") && !line.startsWith("flags")) continue;
+                for (String feature : line.substring(line.indexOf(':') + 1).trim().split("\\s+")) {
+                    if (feature.equals("aes"))
+                        return true;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(UsbSerialWebsocketService.TAG, "Can't read CPU features: " + e.getMessage());
+        }
+        return false;
+    }
+}
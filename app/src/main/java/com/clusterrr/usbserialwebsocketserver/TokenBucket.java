@@ -0,0 +1,54 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+// Not thread safe, callers synchronize
+public class TokenBucket {
+    private final long mRate; // tokens per second
+    private final long mCapacity;
+    private long mTokens;
+    private long mLastRefill;
+
+    public TokenBucket(long rate, long capacity) {
+        mRate = Math.max(1, rate);
+        mCapacity = Math.max(1, capacity);
+        mTokens = mCapacity;
+        mLastRefill = System.nanoTime();
+    }
+
+    public long getRate() {
+        return mRate;
+    }
+
+    public long available() {
+        refill();
+        return mTokens;
+    }
+
+    public void consume(long tokens) {
+        refill();
+        mTokens -= tokens;
+    }
+
+    // Milliseconds until the given number of tokens is available, 0 if they already are
+    public long waitMillis(long tokens) {
+        refill();
+        long missing = Math.min(tokens, mCapacity) - mTokens;
+        if (missing <= 0) return 0;
+        return Math.max(1, (missing * 1000 + mRate - 1) / mRate);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        long elapsed = now - mLastRefill;
+        if (elapsed >= 60_000_000_000L) {
+            // Long idle, the bucket is full anyway and the math below could overflow
+            mTokens = mCapacity;
+            mLastRefill = now;
+            return;
+        }
+        long tokens = elapsed * mRate / 1_000_000_000L;
+        if (tokens <= 0) return;
+        mTokens = Math.min(mCapacity, mTokens + tokens);
+        // Only advance by the time actually converted into tokens, so slow rates don't lose them
+        mLastRefill = mTokens == mCapacity ? now : mLastRefill + tokens * 1_000_000_000L / mRate;
+    }
+}
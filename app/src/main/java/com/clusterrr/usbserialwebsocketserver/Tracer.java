@@ -0,0 +1,222 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import android.os.Process;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Locale;
+
+// Always-on trace of the relay's hot paths. Every thread records into its own preallocated
+// ring, so an event costs a ThreadLocal lookup, a clock read and three stores, and never
+// allocates or locks. dump() writes the rings in Chrome trace format, which Perfetto and
+// chrome://tracing open directly.
+public class Tracer {
+    final static int SERIAL_READ = 1;
+    final static int FAN_OUT = 2;
+    final static int SOCKET_WRITE = 3;
+    final static int WS_MESSAGE = 4;
+    final static int SERIAL_WRITE = 5;
+    final static int GC = 6;
+    private final static String[] NAMES = {"", "serial read", "fan-out", "socket write", "ws message", "serial write", "gc"};
+
+    final static int RING_SIZE = 4096; // events per thread, must be a power of two
+    final static int MAX_RINGS = 32;
+
+    private final static long PHASE_BEGIN = 0;
+    private final static long PHASE_END = 1;
+    private final static long PHASE_INSTANT = 2;
+
+    private final static ArrayList<Ring> sRings = new ArrayList<>();
+    private final static ThreadLocal<Ring> sRing = new ThreadLocal<Ring>() {
+        @Override
+        protected Ring initialValue() {
+            return register(Thread.currentThread());
+        }
+    };
+
+    static {
+        new GcWatcher().start();
+    }
+
+    private Tracer() {
+    }
+
+    private static class Ring {
+        final Thread mThread;
+        final String mName;
+        final int mTid;
+        final long[] mTimes = new long[RING_SIZE];
+        // event << 32 | phase << 30 | argument
+        final long[] mEvents = new long[RING_SIZE];
+        // Number of events ever recorded, published after the slot is written
+        volatile long mCount = 0;
+
+        Ring(Thread thread) {
+            mThread = thread;
+            mName = thread.getName();
+            int tid = Process.myTid();
+            mTid = tid != 0 ? tid : (int) thread.getId();
+        }
+
+        void add(int event, long phase, int arg) {
+            long count = mCount;
+            int i = (int) count & (RING_SIZE - 1);
+            mTimes[i] = System.nanoTime();
+            mEvents[i] = ((long) event << 32) | (phase << 30) | (arg & 0x3FFFFFFFL);
+            mCount = count + 1;
+        }
+    }
+
+    // The rings of dead threads are kept for the dump until there are too many
+    private static Ring register(Thread thread) {
+        Ring ring = new Ring(thread);
+        synchronized (sRings) {
+            if (sRings.size() >= MAX_RINGS) {
+                Iterator<Ring> it = sRings.iterator();
+                while (it.hasNext() && sRings.size() >= MAX_RINGS) {
+                    if (!it.next().mThread.isAlive())
+                        it.remove();
+                }
+            }
+            sRings.add(ring);
+        }
+        return ring;
+    }
+
+    public static void begin(int event) {
+        sRing.get().add(event, PHASE_BEGIN, 0);
+    }
+
+    // arg is usually a byte count, it shows up in the trace as "bytes"
+    public static void end(int event, int arg) {
+        sRing.get().add(event, PHASE_END, Math.max(0, arg));
+    }
+
+    public static void end(int event) {
+        sRing.get().add(event, PHASE_END, 0);
+    }
+
+    public static void instant(int event) {
+        sRing.get().add(event, PHASE_INSTANT, 0);
+    }
+
+    public static File dumpToFile(File dir) throws IOException {
+        File file = new File(dir, "trace-" + new SimpleDateFormat("yyMMdd-HHmmss", Locale.US).format(new Date()) + ".json");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            out.write('{');
+            dump(out);
+            out.write('}');
+        }
+        return file;
+    }
+
+    // Writes the "traceEvents" member of a trace object, the caller adds the braces,
+    // so it can put other members next to it
+    public static void dump(Appendable out) throws IOException {
+        Ring[] rings;
+        synchronized (sRings) {
+            rings = sRings.toArray(new Ring[0]);
+        }
+        int pid = Process.myPid();
+        out.append("\"displayTimeUnit\":\"ns\",\"traceEvents\":[");
+        boolean first = true;
+        for (Ring ring : rings) {
+            if (!first) out.append(',');
+            first = false;
+            out.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":").append(Integer.toString(pid))
+                    .append(",\"tid\":").append(Integer.toString(ring.mTid))
+                    .append(",\"args\":{\"name\":\"").append(escape(ring.mName)).append("\"}}");
+            dumpRing(out, ring, pid);
+        }
+        out.append(']');
+    }
+
+    private static void dumpRing(Appendable out, Ring ring, int pid) throws IOException {
+        // The owner keeps recording while we copy. Whatever it may have overwritten
+        // in the meantime is dropped, so torn events never make it into the trace.
+        long[] times = new long[RING_SIZE];
+        long[] events = new long[RING_SIZE];
+        long before = ring.mCount;
+        System.arraycopy(ring.mTimes, 0, times, 0, RING_SIZE);
+        System.arraycopy(ring.mEvents, 0, events, 0, RING_SIZE);
+        long after = ring.mCount;
+        long from = Math.max(0, after - RING_SIZE + 1);
+        int depth = 0;
+        for (long n = from; n < before; n++) {
+            int i = (int) n & (RING_SIZE - 1);
+            int event = (int) (events[i] >>> 32);
+            long phase = (events[i] >>> 30) & 3;
+            int arg = (int) (events[i] & 0x3FFFFFFFL);
+            if (event <= 0 || event >= NAMES.length) continue;
+            if (phase == PHASE_END) {
+                // Its begin was overwritten
+                if (depth == 0) continue;
+                depth--;
+            } else if (phase == PHASE_BEGIN) {
+                depth++;
+            }
+            out.append(",{\"name\":\"").append(NAMES[event])
+                    .append("\",\"ph\":\"").append(phase == PHASE_BEGIN ? "B" : phase == PHASE_END ? "E" : "i")
+                    .append("\",\"ts\":").append(micros(times[i]))
+                    .append(",\"pid\":").append(Integer.toString(pid))
+                    .append(",\"tid\":").append(Integer.toString(ring.mTid));
+            if (phase == PHASE_INSTANT)
+                out.append(",\"s\":\"p\"");
+            if (phase == PHASE_END && arg > 0)
+                out.append(",\"args\":{\"bytes\":").append(Integer.toString(arg)).append('}');
+            out.append('}');
+        }
+    }
+
+    private static String micros(long nanos) {
+        return (nanos / 1000) + "." + String.format(Locale.US, "%03d", nanos % 1000);
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\');
+            if (c < 0x20) continue;
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    // Marks every GC in its own ring. Each collection clears the weak reference to an
+    // otherwise unreachable object, which puts it on the queue, and a new one takes its place.
+    private static class GcWatcher extends Thread {
+        private final ReferenceQueue<Object> mQueue = new ReferenceQueue<>();
+        // The reference itself has to stay reachable, or it would never be queued
+        private WeakReference<Object> mSentinel;
+
+        GcWatcher() {
+            super("GcWatcher");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            mSentinel = new WeakReference<>(new Object(), mQueue);
+            try {
+                while (true) {
+                    mQueue.remove();
+                    instant(GC);
+                    mSentinel = new WeakReference<>(new Object(), mQueue);
+                }
+            } catch (InterruptedException e) {
+                // Stopping
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Watches the serial data for the patterns of all trigger rules at once. The patterns are
+// compiled into an Aho-Corasick automaton with every transition precomputed, so scanning
+// costs one table lookup per byte. The state carries over from one read to the next,
+// so a pattern split between two USB packets still matches.
+// scan() is only called from the fan-out thread.
+public class TriggerEngine {
+    final static String FILE_NAME = "triggers.json";
+    final static int MAX_RULES = 64;
+    // Bounds the table to 256 transitions of 2 bytes for each pattern byte, about 2 MB
+    final static int MAX_TOTAL_PATTERN_LENGTH = 4096;
+    private final static char NONE = Character.MAX_VALUE;
+
+    // How the rules act on the port and the clients
+    public interface Actions {
+        void send(byte[] data) throws IOException;
+        void setDtr(boolean value) throws IOException;
+        void setRts(boolean value) throws IOException;
+        void notify(TriggerRule rule);
+    }
+
+    private final TriggerRule[] mRules;
+    // state << 8 | byte -> next state, there are fewer states than NONE
+    private final char[] mTransitions;
+    // state -> indexes of the rules whose pattern ends there, null for most states
+    private final int[][] mMatches;
+    private int mState = 0;
+
+    public TriggerEngine(List<TriggerRule> rules) {
+        mRules = rules.toArray(new TriggerRule[0]);
+        int maxStates = 1;
+        for (TriggerRule rule : mRules)
+            maxStates += rule.pattern.length;
+        char[] transitions = new char[maxStates << 8];
+        Arrays.fill(transitions, NONE);
+        List<List<Integer>> matches = new ArrayList<>();
+        matches.add(null);
+
+        // Trie of all patterns
+        int states = 1;
+        for (int r = 0; r < mRules.length; r++) {
+            int state = 0;
+            for (byte b : mRules[r].pattern) {
+                int i = state << 8 | (b & 0xFF);
+                if (transitions[i] == NONE) {
+                    transitions[i] = (char) states++;
+                    matches.add(null);
+                }
+                state = transitions[i];
+            }
+            if (matches.get(state) == null)
+                matches.set(state, new ArrayList<>());
+            matches.get(state).add(r);
+        }
+
+        // Breadth first, so the failure state of each state is complete before it is used
+        int[] failure = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int b = 0; b < 256; b++) {
+            if (transitions[b] == NONE) {
+                transitions[b] = 0;
+            } else {
+                failure[transitions[b]] = 0;
+                queue.add((int) transitions[b]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            List<Integer> inherited = matches.get(failure[state]);
+            if (inherited != null) {
+                if (matches.get(state) == null)
+                    matches.set(state, new ArrayList<>());
+                matches.get(state).addAll(inherited);
+            }
+            for (int b = 0; b < 256; b++) {
+                int i = state << 8 | b;
+                char fallback = transitions[failure[state] << 8 | b];
+                if (transitions[i] == NONE) {
+                    transitions[i] = fallback;
+                } else {
+                    failure[transitions[i]] = fallback;
+                    queue.add((int) transitions[i]);
+                }
+            }
+        }
+
+        mTransitions = Arrays.copyOf(transitions, states << 8);
+        mMatches = new int[states][];
+        for (int s = 0; s < states; s++) {
+            List<Integer> list = matches.get(s);
+            if (list == null) continue;
+            mMatches[s] = new int[list.size()];
+            for (int i = 0; i < list.size(); i++)
+                mMatches[s][i] = list.get(i);
+        }
+    }
+
+    public static TriggerEngine fromJson(JSONArray json) throws JSONException {
+        if (json.length() > MAX_RULES)
+            throw new JSONException("Too many rules, the limit is " + MAX_RULES);
+        List<TriggerRule> rules = new ArrayList<>();
+        int total = 0;
+        for (int i = 0; i < json.length(); i++) {
+            TriggerRule rule = TriggerRule.fromJson(json.getJSONObject(i));
+            total += rule.pattern.length;
+            if (total > MAX_TOTAL_PATTERN_LENGTH)
+                throw new JSONException("Patterns are too long, the limit is " + MAX_TOTAL_PATTERN_LENGTH + " bytes in total");
+            rules.add(rule);
+        }
+        return new TriggerEngine(rules);
+    }
+
+    public JSONArray toJson() {
+        JSONArray json = new JSONArray();
+        for (TriggerRule rule : mRules)
+            json.put(rule.toJson());
+        return json;
+    }
+
+    public boolean isEmpty() {
+        return mRules.length == 0;
+    }
+
+    public void scan(byte[] data, int offset, int len, Actions actions) {
+        int state = mState;
+        char[] transitions = mTransitions;
+        for (int i = offset; i < offset + len; i++) {
+            state = transitions[state << 8 | (data[i] & 0xFF)];
+            int[] matches = mMatches[state];
+            if (matches != null) {
+                for (int r : matches)
+                    fire(mRules[r], actions);
+            }
+        }
+        mState = state;
+    }
+
+    private void fire(TriggerRule rule, Actions actions) {
+        long now = System.nanoTime();
+        if (rule.cooldown > 0 && rule.mLastFired != 0 && now - rule.mLastFired < rule.cooldown * 1_000_000L)
+            return;
+        rule.mLastFired = now;
+        if (BuildConfig.DEBUG) {
+            Log.d(UsbSerialWebsocketService.TAG, "Trigger " + rule.id + " fired");
+        }
+        try {
+            for (int i = 0; i < rule.mActionTypes.length; i++) {
+                switch (rule.mActionTypes[i]) {
+                    case TriggerRule.ACTION_SEND:
+                        actions.send(rule.mActionData[i]);
+                        break;
+                    case TriggerRule.ACTION_DTR:
+                        actions.setDtr(rule.mActionValues[i]);
+                        break;
+                    case TriggerRule.ACTION_RTS:
+                        actions.setRts(rule.mActionValues[i]);
+                        break;
+                    case TriggerRule.ACTION_NOTIFY:
+                        actions.notify(rule);
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(UsbSerialWebsocketService.TAG, "Trigger " + rule.id + " failed: " + e.getMessage());
+        }
+    }
+
+    // null when no rules were saved or the file is broken
+    public static TriggerEngine load(Context context) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        if (!file.exists()) return null;
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int pos = 0;
+            int l;
+            while (pos < data.length && (l = in.read(data, pos, data.length - pos)) > 0)
+                pos += l;
+            return fromJson(new JSONArray(new String(data, 0, pos, StandardCharsets.UTF_8)));
+        } catch (IOException | JSONException e) {
+            Log.e(UsbSerialWebsocketService.TAG, "Can't load trigger rules: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Written to a temporary file first, so a crash never leaves half a file behind
+    public static void save(Context context, TriggerEngine engine) throws IOException {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        File tmp = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(engine.toJson().toString().getBytes(StandardCharsets.UTF_8));
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Can't rename " + tmp + " to " + file);
+    }
+}
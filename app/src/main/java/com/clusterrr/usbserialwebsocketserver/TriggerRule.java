@@ -0,0 +1,90 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+
+// A pattern to watch for in the serial data and what to do when it shows up, e.g.
+// {"id": "autoboot", "pattern": "Hit any key to stop autoboot", "actions": [{"send": "\n"}]}
+// Patterns are text or, with "pattern_hex", raw bytes. Actions run in order:
+//   {"send": "text"}, {"send_hex": "1b5b41"}, {"dtr": true}, {"rts": false}, {"notify": true}
+// "cooldown" (ms) keeps the rule from firing again too soon, e.g. on a repeated prompt.
+public class TriggerRule {
+    final static int MAX_PATTERN_LENGTH = 256;
+
+    final static int ACTION_SEND = 1;
+    final static int ACTION_DTR = 2;
+    final static int ACTION_RTS = 3;
+    final static int ACTION_NOTIFY = 4;
+
+    public final String id;
+    public final byte[] pattern;
+    public final int cooldown;
+    final int[] mActionTypes;
+    final byte[][] mActionData;
+    final boolean[] mActionValues;
+    private final JSONObject mJson;
+    long mLastFired = 0;
+
+    private TriggerRule(JSONObject json) throws JSONException {
+        mJson = json;
+        id = json.getString("id");
+        if (json.has("pattern_hex"))
+            pattern = parseHex(json.getString("pattern_hex"));
+        else
+            pattern = json.getString("pattern").getBytes(StandardCharsets.UTF_8);
+        if (pattern.length == 0 || pattern.length > MAX_PATTERN_LENGTH)
+            throw new JSONException("Pattern of rule \"" + id + "\" must be 1 to " + MAX_PATTERN_LENGTH + " bytes long");
+        cooldown = Math.max(0, json.optInt("cooldown", 0));
+
+        JSONArray actions = json.getJSONArray("actions");
+        mActionTypes = new int[actions.length()];
+        mActionData = new byte[actions.length()][];
+        mActionValues = new boolean[actions.length()];
+        for (int i = 0; i < actions.length(); i++) {
+            JSONObject action = actions.getJSONObject(i);
+            if (action.has("send")) {
+                mActionTypes[i] = ACTION_SEND;
+                mActionData[i] = action.getString("send").getBytes(StandardCharsets.UTF_8);
+            } else if (action.has("send_hex")) {
+                mActionTypes[i] = ACTION_SEND;
+                mActionData[i] = parseHex(action.getString("send_hex"));
+            } else if (action.has("dtr")) {
+                mActionTypes[i] = ACTION_DTR;
+                mActionValues[i] = action.getBoolean("dtr");
+            } else if (action.has("rts")) {
+                mActionTypes[i] = ACTION_RTS;
+                mActionValues[i] = action.getBoolean("rts");
+            } else if (action.has("notify")) {
+                mActionTypes[i] = ACTION_NOTIFY;
+            } else {
+                throw new JSONException("Unknown action in rule \"" + id + "\": " + action);
+            }
+        }
+    }
+
+    public static TriggerRule fromJson(JSONObject json) throws JSONException {
+        return new TriggerRule(json);
+    }
+
+    public JSONObject toJson() {
+        return mJson;
+    }
+
+    private static byte[] parseHex(String hex) throws JSONException {
+        hex = hex.replace(" ", "");
+        if (hex.length() % 2 != 0)
+            throw new JSONException("Odd number of hex digits: " + hex);
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(hex.charAt(i * 2), 16);
+            int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0)
+                throw new JSONException("Invalid hex: " + hex);
+            bytes[i] = (byte) (hi << 4 | lo);
+        }
+        return bytes;
+    }
+}
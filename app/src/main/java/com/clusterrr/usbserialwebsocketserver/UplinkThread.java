@@ -0,0 +1,294 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import android.util.Log;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.handshake.ServerHandshake;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Keeps one outbound connection to an aggregator, for phones that can't be reached inbound,
+// e.g. behind NAT. The serial data is read from the stream history rather than pushed,
+// so each frame batches whatever arrived since the last one, and after a reconnect the
+// link picks up right where the aggregator left off. The connection is compressed with
+// permessage-deflate.
+//
+// Binary frames start with a type byte and a u16 channel number, channel is the port id:
+//   DATA   device -> aggregator: u64 seq of the first chunk, then per chunk u64 timestamp (µs), u16 length, bytes
+//   GAP    device -> aggregator: u64 first and u64 last seq that are no longer available
+//   WRITE  aggregator -> device: bytes to write to the port
+// Text frames are JSON. The device opens with {"hello": id, "channels": [{"channel", "baud", "stream", "first", "next"}]}
+// and the aggregator answers {"resume": {"<channel>": seq}, "streams": {"<channel>": stream}}, the seq it wants
+// next or -1 for live data only. Sequence numbers start over whenever the service restarts, e.g. after a replug,
+// and "stream" changes with them, so the aggregator knows not to resume at the seq of the previous stream.
+public class UplinkThread extends Thread {
+    final static int FRAME_DATA = 1;
+    final static int FRAME_GAP = 2;
+    final static int FRAME_WRITE = 3;
+    final static int FRAME_HEADER_SIZE = 3; // type, channel
+    final static int CHUNK_HEADER_SIZE = 10; // timestamp, length
+
+    final static int BATCH_MILLIS = 50;
+    final static int MAX_BATCH_SIZE = 64 * 1024;
+    final static int CONNECT_TIMEOUT = 10 * 1000; // ms
+    final static int RESUME_TIMEOUT = 10 * 1000; // ms
+    final static int MIN_RECONNECT_DELAY = 1000; // ms
+    final static int MAX_RECONNECT_DELAY = 60 * 1000; // ms
+    final static int WRITE_POOL_SIZE = 8;
+    final static int WRITE_BUFFER_SIZE = 1024;
+
+    private final UsbSerialWebsocketService mUsbSerialWebsocketService;
+    private final URI mUri;
+    private final String mDeviceId;
+    private final int mChannel;
+    private final StreamHistory mHistory;
+    private final ByteBuffer mFrame = ByteBuffer.allocate(FRAME_HEADER_SIZE + 8 + MAX_BATCH_SIZE);
+    private final BufferPool mWritePool = new BufferPool("uplink writes", WRITE_POOL_SIZE, WRITE_BUFFER_SIZE);
+    private final Random mRandom = new Random();
+    private volatile Link mLink = null;
+    private volatile boolean mStopped = false;
+
+    private class Link extends WebSocketClient {
+        private final SerialWriteScheduler.Client mWriter;
+        // Not the client itself, WebSocketClient synchronizes on that internally
+        private final Object mResumeLock = new Object();
+        private long mResume = Long.MIN_VALUE; // not received yet
+        private long mResumeStream = -1; // the stream mResume belongs to, -1 if the aggregator didn't say
+
+        Link() {
+            super(mUri, new Draft_6455(new PerMessageDeflateExtension()));
+            setConnectionLostTimeout(60);
+            SerialWriteScheduler scheduler = mUsbSerialWebsocketService.getWriteScheduler();
+            mWriter = scheduler != null ? scheduler.register(1, 0, true, null) : null;
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+            Log.i(UsbSerialWebsocketService.TAG, "Uplink connected to " + mUri);
+        }
+
+        @Override
+        public void onMessage(String message) {
+            try {
+                JSONObject json = new JSONObject(message);
+                JSONObject resume = json.optJSONObject("resume");
+                if (resume != null) {
+                    JSONObject streams = json.optJSONObject("streams");
+                    synchronized (mResumeLock) {
+                        mResumeStream = streams != null ? streams.optLong(String.valueOf(mChannel), -1) : -1;
+                        mResume = resume.optLong(String.valueOf(mChannel), -1);
+                        mResumeLock.notifyAll();
+                    }
+                }
+            } catch (JSONException e) {
+                Log.w(UsbSerialWebsocketService.TAG, "Invalid message from the aggregator: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onMessage(ByteBuffer message) {
+            if (message.remaining() < FRAME_HEADER_SIZE) return;
+            int type = message.get() & 0xFF;
+            int channel = message.getShort() & 0xFFFF;
+            if (type != FRAME_WRITE || channel != mChannel) return;
+            write(message);
+        }
+
+        // Aggregator writes share the port with local clients through the scheduler
+        private void write(ByteBuffer data) {
+            SerialWriteScheduler scheduler = mUsbSerialWebsocketService.getWriteScheduler();
+            if (scheduler == null || mWriter == null) return;
+            int len = data.remaining();
+            if (scheduler.admit(mWriter, len) != SerialWriteScheduler.SubmitResult.ACCEPTED) {
+                Log.w(UsbSerialWebsocketService.TAG, "Serial write quota exceeded by the aggregator, " + len + " bytes rejected");
+                JSONObject event = ClientEvents.create(ClientEvents.WRITE_REJECTED);
+                try {
+                    event.put("channel", mChannel);
+                    event.put("bytes", len);
+                } catch (JSONException e) {
+                    // Can't happen with numbers
+                }
+                if (isOpen())
+                    send(event.toString());
+                return;
+            }
+            while (data.hasRemaining()) {
+                PooledBuffer pooled = mWritePool.acquire();
+                int size = Math.min(data.remaining(), pooled.buffer().remaining());
+                pooled.buffer().put(data.array(), data.arrayOffset() + data.position(), size);
+                data.position(data.position() + size);
+                pooled.buffer().flip();
+                scheduler.enqueue(mWriter, pooled);
+            }
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            Log.i(UsbSerialWebsocketService.TAG, "Uplink disconnected: " + code + " " + reason);
+            SerialWriteScheduler scheduler = mUsbSerialWebsocketService.getWriteScheduler();
+            if (scheduler != null && mWriter != null)
+                scheduler.unregister(mWriter);
+            synchronized (mResumeLock) {
+                mResumeLock.notifyAll();
+            }
+            // Wakes up the streaming loop
+            synchronized (mHistory) {
+                mHistory.notifyAll();
+            }
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            Log.w(UsbSerialWebsocketService.TAG, "Uplink error: " + ex.getMessage());
+        }
+
+        // The seq the aggregator wants next, -1 for live data, Long.MIN_VALUE if it didn't say
+        long awaitResume(long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            synchronized (mResumeLock) {
+                long now;
+                while (mResume == Long.MIN_VALUE && isOpen() && (now = System.currentTimeMillis()) < deadline)
+                    mResumeLock.wait(deadline - now);
+                return mResume;
+            }
+        }
+
+        long getResumeStream() {
+            synchronized (mResumeLock) {
+                return mResumeStream;
+            }
+        }
+    }
+
+    // history is the server's, it is appended to under its own lock and notified on every chunk
+    public UplinkThread(UsbSerialWebsocketService UsbSerialWebsocketService, URI uri, String deviceId, int channel, StreamHistory history) {
+        super("UplinkThread");
+        mUsbSerialWebsocketService = UsbSerialWebsocketService;
+        mUri = uri;
+        mDeviceId = deviceId;
+        mChannel = channel;
+        mHistory = history;
+    }
+
+    @Override
+    public void run() {
+        int delay = MIN_RECONNECT_DELAY;
+        try {
+            while (!mStopped) {
+                Link link = new Link();
+                mLink = link;
+                try {
+                    if (link.connectBlocking(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS) && !mStopped) {
+                        link.send(hello().toString());
+                        long resume = link.awaitResume(RESUME_TIMEOUT);
+                        if (resume != Long.MIN_VALUE) {
+                            delay = MIN_RECONNECT_DELAY;
+                            stream(link, resume, link.getResumeStream());
+                        } else if (link.isOpen()) {
+                            Log.w(UsbSerialWebsocketService.TAG, "Aggregator didn't answer the hello");
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    Log.w(UsbSerialWebsocketService.TAG, "Uplink: " + e.getMessage());
+                } finally {
+                    link.close();
+                }
+                if (mStopped) break;
+                // Spread the reconnects of a whole fleet after the aggregator restarts
+                Thread.sleep(delay / 2 + mRandom.nextInt(delay / 2 + 1));
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+            }
+        } catch (InterruptedException e) {
+            // Stopping
+        }
+        Log.i(UsbSerialWebsocketService.TAG, "Uplink stopped");
+    }
+
+    public void close() {
+        mStopped = true;
+        interrupt();
+        Link link = mLink;
+        if (link != null)
+            link.close();
+    }
+
+    private JSONObject hello() throws JSONException {
+        JSONObject channel = new JSONObject();
+        channel.put("channel", mChannel);
+        SerialFormat format = mUsbSerialWebsocketService.mSerialFormat;
+        if (format != null)
+            channel.put("baud", format.baudRate);
+        synchronized (mHistory) {
+            channel.put("stream", mHistory.getStreamId());
+            channel.put("first", mHistory.getFirstSeq());
+            channel.put("next", mHistory.getNextSeq());
+        }
+        JSONObject hello = new JSONObject();
+        hello.put("hello", mDeviceId);
+        hello.put("channels", new JSONArray().put(channel));
+        return hello;
+    }
+
+    // resumeStream is the stream from is a seq of, -1 if unknown
+    private void stream(Link link, long from, long resumeStream) throws InterruptedException {
+        long next;
+        synchronized (mHistory) {
+            next = from < 0 ? mHistory.getNextSeq() : from;
+            // The aggregator is still counting in a previous stream, everything still held is new to it
+            if (from >= 0 && (from > mHistory.getNextSeq() || (resumeStream >= 0 && resumeStream != mHistory.getStreamId()))) {
+                Log.w(UsbSerialWebsocketService.TAG, "Aggregator asked for seq " + from + " of stream " + resumeStream
+                        + ", stream " + mHistory.getStreamId() + " is at " + mHistory.getNextSeq() + ", sending it from the start");
+                next = mHistory.getFirstSeq();
+            }
+        }
+        Log.i(UsbSerialWebsocketService.TAG, "Uplink streaming from seq " + next);
+        while (!mStopped && link.isOpen()) {
+            synchronized (mHistory) {
+                while (mHistory.getNextSeq() == next && !mStopped && link.isOpen())
+                    mHistory.wait();
+            }
+            // Give the batch time to fill, and don't pile frames up behind a slow link
+            do {
+                Thread.sleep(BATCH_MILLIS);
+            } while (link.hasBufferedData() && link.isOpen());
+            if (!link.isOpen()) break;
+
+            long gapFrom = -1;
+            long gapTo = -1;
+            mFrame.clear();
+            synchronized (mHistory) {
+                if (next < mHistory.getFirstSeq()) {
+                    gapFrom = next;
+                    gapTo = mHistory.getFirstSeq() - 1;
+                    next = mHistory.getFirstSeq();
+                }
+                mFrame.put((byte) FRAME_DATA).putShort((short) mChannel).putLong(next);
+                while (next < mHistory.getNextSeq() && mFrame.remaining() >= CHUNK_HEADER_SIZE + mHistory.getLength(next)) {
+                    mFrame.putLong(mHistory.getTimestamp(next)).putShort((short) mHistory.getLength(next));
+                    mHistory.get(next, mFrame);
+                    next++;
+                }
+            }
+            if (gapFrom >= 0) {
+                Log.w(UsbSerialWebsocketService.TAG, "Uplink fell behind, seq " + gapFrom + " to " + gapTo + " lost");
+                ByteBuffer gap = ByteBuffer.allocate(FRAME_HEADER_SIZE + 16);
+                gap.put((byte) FRAME_GAP).putShort((short) mChannel).putLong(gapFrom).putLong(gapTo).flip();
+                link.send(gap);
+            }
+            // With compression on, send() holds on to the buffer, so each frame gets its own copy
+            if (mFrame.position() > FRAME_HEADER_SIZE + 8)
+                link.send(ByteBuffer.wrap(Arrays.copyOf(mFrame.array(), mFrame.position())));
+        }
+    }
+}
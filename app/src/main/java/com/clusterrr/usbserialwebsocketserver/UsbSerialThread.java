@@ -8,13 +8,35 @@ import android.util.Log;
 import com.hoho.android.usbserial.driver.UsbSerialPort;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 
 public class UsbSerialThread extends Thread {
     final static int WRITE_TIMEOUT = 1000;
+    final static int READ_BUFFER_SIZE = 1024;
+    final static int DEFAULT_PACKET_SIZE = 64;
+    // Data the adapter may still hold from earlier writes, it has to drain before ours fits
+    final static int ADAPTER_FIFO_SIZE = 512;
+    // As much as the stream history keeps
+    final static int RING_SIZE = 256 * 1024;
+    final static int RING_SLOTS = 4096;
+    final static int TRIGGER_POOL_SIZE = 4;
+    final static int TRIGGER_BUFFER_SIZE = 256;
+    // Ahead of the clients in the scheduler's round robin, longer sends aren't interactive
+    final static int TRIGGER_WEIGHT = 16;
 
     private UsbSerialWebsocketService mUsbSerialWebsocketService;
     private UsbSerialPort mSerialPort;
+    private final byte[] mReadBuffer = new byte[READ_BUFFER_SIZE];
+    private final SerialRing mRing = new SerialRing(RING_SIZE, RING_SLOTS);
+    private final FanOutThread mFanOut = new FanOutThread();
     private Handler mHandler;
+    private SerialFormat mFormat = null;
+    private int mCharDelay = 0;
+    private int mLineDelay = 0;
+    private byte[] mPacket = null;
+    private volatile TriggerEngine mTriggers = null;
+    private final TriggerActions mTriggerActions = new TriggerActions();
 
     public UsbSerialThread(UsbSerialWebsocketService UsbSerialWebsocketService, UsbSerialPort serialPort) {
         mUsbSerialWebsocketService = UsbSerialWebsocketService;
@@ -22,25 +44,37 @@ public class UsbSerialThread extends Thread {
         mHandler = new Handler();
     }
 
+    // Only reads: the data is copied to the ring for the fan-out thread, so no client,
+    // however slow, keeps the port from being drained
     @Override
     public void run() {
-        byte[] buffer = new byte[1024];
-
+        mFanOut.start();
+        boolean overflowing = false;
         try {
             while (true) {
-                if (mSerialPort == null) break;
+                UsbSerialPort port = mSerialPort;
+                if (port == null) break;
                 // Read data
-                int l = mSerialPort.read(buffer, 0);
+                byte[] buffer = mReadBuffer;
+                Tracer.begin(Tracer.SERIAL_READ);
+                int l = port.read(buffer, 0);
+                Tracer.end(Tracer.SERIAL_READ, l);
+                long timestamp = Envelope.nowMicros();
                 if (l <= 0) break; // disconnect
-                if (BuildConfig.DEBUG) {
-                    StringBuilder hexStr = new StringBuilder();
-                    for (int i = 0; i < l; i++) {
-                        hexStr.append(String.format("%02X ", buffer[i]));
-                    }
-                    Log.d(UsbSerialWebsocketService.TAG, "Received " + l + " bytes from port: " + hexStr.toString().trim());
+                // The gateway times the bus, it has to see the data as soon as it arrives
+                ModbusGateway modbus = mUsbSerialWebsocketService.getModbusGateway();
+                if (modbus != null)
+                    modbus.onSerialData(buffer, l);
+                // So do the upload's block acknowledgements
+                FirmwareUpload upload = mUsbSerialWebsocketService.getUpload();
+                if (upload != null)
+                    upload.onSerialData(buffer, l);
+                if (mRing.offer(buffer, l, timestamp)) {
+                    overflowing = false;
+                } else if (!overflowing) {
+                    overflowing = true;
+                    Log.w(UsbSerialWebsocketService.TAG, "Fan-out is a whole ring behind, dropping serial data");
                 }
-                // Write data
-                mUsbSerialWebsocketService.writeClients(buffer, 0, l);
             }
         }
         catch (IOException e) {
@@ -53,12 +87,242 @@ public class UsbSerialThread extends Thread {
         }
         close();
         Log.i(UsbSerialWebsocketService.TAG, "Serial port closed");
+        if (mRing.getOverflows() > 0)
+            Log.w(UsbSerialWebsocketService.TAG, mRing.getDroppedBytes() + " bytes dropped in " + mRing.getOverflows() + " reads while the fan-out was behind");
         mUsbSerialWebsocketService.stopSelf();
     }
 
+    // Sends everything the reader published to the clients. Reads that are waiting together
+    // go out as one chunk up to READ_BUFFER_SIZE, fewer and fuller frames when it's busy.
+    private class FanOutThread extends Thread {
+        FanOutThread() {
+            super("FanOutThread");
+        }
+
+        @Override
+        public void run() {
+            try {
+                int available;
+                while ((available = mRing.await()) > 0) {
+                    while (available > 0) {
+                        int offset = mRing.offset(0);
+                        int len = mRing.length(0);
+                        int count = 1;
+                        // Contiguous unless the ring wrapped in between
+                        while (count < available && mRing.offset(count) == offset + len
+                                && len + mRing.length(count) <= READ_BUFFER_SIZE) {
+                            len += mRing.length(count);
+                            count++;
+                        }
+                        dispatch(mRing.data(), offset, len, mRing.timestamp(0));
+                        mRing.release(count);
+                        available -= count;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Stopping
+            }
+        }
+
+        private void dispatch(byte[] data, int offset, int len, long timestamp) {
+            if (BuildConfig.DEBUG) {
+                StringBuilder hexStr = new StringBuilder();
+                for (int i = offset; i < offset + len; i++) {
+                    hexStr.append(String.format("%02X ", data[i]));
+                }
+                Log.d(UsbSerialWebsocketService.TAG, "Received " + len + " bytes from port: " + hexStr.toString().trim());
+            }
+            // Before the fan-out, so how fast a trigger answers doesn't depend on the clients
+            TriggerEngine triggers = mTriggers;
+            if (triggers != null)
+                triggers.scan(data, offset, len, mTriggerActions);
+            // A failing client mustn't stop the data for everyone else
+            try {
+                mUsbSerialWebsocketService.writeClients(data, offset, len, timestamp);
+            } catch (Exception e) {
+                Log.e(UsbSerialWebsocketService.TAG, "Fan-out failed: " + e.getMessage());
+            }
+            // The clients see the data before the trigger events it caused
+            mTriggerActions.flushNotifications();
+            TelemetryConflator telemetry = mUsbSerialWebsocketService.getTelemetry();
+            if (telemetry != null)
+                telemetry.onSerialData(data, offset, len);
+        }
+    }
+
+    public void setWaitStrategy(SerialRing.WaitStrategy waitStrategy) {
+        mRing.setWaitStrategy(waitStrategy);
+    }
+
+    public SerialRing getRing() {
+        return mRing;
+    }
+
     public void write(byte[] data) throws IOException {
-        if (mSerialPort != null)
-            mSerialPort.write(data, WRITE_TIMEOUT);
+        write(data, data.length);
+    }
+
+    // Replaces the rules, null disables them
+    public void setTriggers(TriggerEngine triggers) {
+        mTriggers = triggers == null || triggers.isEmpty() ? null : triggers;
+    }
+
+    // Triggers act right here on the fan-out thread, without a round trip to any client.
+    // What they send is queued with the clients' writes, so it can't land in the middle of
+    // somebody else's data, and never blocks the fan-out.
+    private class TriggerActions implements TriggerEngine.Actions {
+        private final BufferPool mPool = new BufferPool("trigger writes", TRIGGER_POOL_SIZE, TRIGGER_BUFFER_SIZE);
+        private SerialWriteScheduler mScheduler = null;
+        private SerialWriteScheduler.Client mWriter = null;
+        private final ArrayList<TriggerRule> mNotifications = new ArrayList<>();
+
+        @Override
+        public void send(byte[] data) throws IOException {
+            // Whatever the rule answers is long gone once the upload is done
+            if (mUsbSerialWebsocketService.getUpload() != null) {
+                Log.w(UsbSerialWebsocketService.TAG, "Trigger send skipped, an upload has the port");
+                return;
+            }
+            SerialWriteScheduler scheduler = mUsbSerialWebsocketService.getWriteScheduler();
+            if (scheduler == null) {
+                write(data, data.length);
+                return;
+            }
+            if (scheduler != mScheduler) {
+                mScheduler = scheduler;
+                mWriter = scheduler.register(TRIGGER_WEIGHT, 0, false, null);
+            }
+            if (scheduler.admit(mWriter, data.length) != SerialWriteScheduler.SubmitResult.ACCEPTED) {
+                Log.w(UsbSerialWebsocketService.TAG, "Trigger send of " + data.length + " bytes rejected, the write queue is full");
+                return;
+            }
+            for (int pos = 0; pos < data.length; ) {
+                PooledBuffer pooled = mPool.acquire();
+                int size = Math.min(data.length - pos, pooled.buffer().capacity());
+                System.arraycopy(data, pos, pooled.array(), 0, size);
+                pooled.buffer().limit(size);
+                scheduler.enqueue(mWriter, pooled);
+                pos += size;
+            }
+        }
+
+        @Override
+        public void setDtr(boolean value) throws IOException {
+            UsbSerialPort port = mSerialPort;
+            if (port != null) port.setDTR(value);
+        }
+
+        @Override
+        public void setRts(boolean value) throws IOException {
+            UsbSerialPort port = mSerialPort;
+            if (port != null) port.setRTS(value);
+        }
+
+        @Override
+        public void notify(TriggerRule rule) {
+            mNotifications.add(rule);
+        }
+
+        void flushNotifications() {
+            for (int i = 0; i < mNotifications.size(); i++)
+                mUsbSerialWebsocketService.notifyTrigger(mNotifications.get(i));
+            mNotifications.clear();
+        }
+    }
+
+    // charDelay and lineDelay are in milliseconds, 0 disables them
+    public void setPacing(SerialFormat format, int charDelay, int lineDelay) {
+        mFormat = format;
+        mCharDelay = Math.max(0, charDelay);
+        mLineDelay = Math.max(0, lineDelay);
+    }
+
+    // Writes in USB packet sized pieces, each with a deadline derived from the line speed,
+    // so long writes on slow links don't time out. On a timeout the InterruptedIOException
+    // tells how many bytes of data made it to the adapter.
+    public void write(byte[] data, int len) throws IOException {
+        write(data, 0, len, false);
+    }
+
+    public void write(byte[] data, int len, boolean paced) throws IOException {
+        write(data, 0, len, paced);
+    }
+
+    public void write(byte[] data, int offset, int len) throws IOException {
+        write(data, offset, len, false);
+    }
+
+    // Only what clients type is paced with the character and line delays. Modbus frames,
+    // uploads and trigger answers are binary or timed by their protocol and go out as they are.
+    public synchronized void write(byte[] data, int offset, int len, boolean paced) throws IOException {
+        UsbSerialPort port = mSerialPort;
+        if (port == null) return;
+        Tracer.begin(Tracer.SERIAL_WRITE);
+        try {
+            writePacketized(port, data, offset, len, paced ? mCharDelay : 0, paced ? mLineDelay : 0);
+        } finally {
+            Tracer.end(Tracer.SERIAL_WRITE, len);
+        }
+    }
+
+    // The driver only writes from the start of an array, data further in goes through mPacket
+    private void writePacketized(UsbSerialPort port, byte[] data, int offset, int len, int charDelay, int lineDelay) throws IOException {
+        if (offset == 0 && mFormat == null && charDelay == 0 && lineDelay == 0) {
+            port.write(data, len, WRITE_TIMEOUT);
+            return;
+        }
+        if (mPacket == null)
+            mPacket = new byte[getPacketSize(port)];
+        int pos = 0;
+        try {
+            while (pos < len) {
+                int size = Math.min(mPacket.length, len - pos);
+                if (charDelay > 0) {
+                    size = 1;
+                } else if (lineDelay > 0) {
+                    // Stop right after the end of line, so the delay goes after it
+                    for (int i = 0; i < size; i++) {
+                        if (data[offset + pos + i] == '\n' || data[offset + pos + i] == '\r') {
+                            size = i + 1;
+                            break;
+                        }
+                    }
+                }
+                System.arraycopy(data, offset + pos, mPacket, 0, size);
+                writePacket(port, size);
+                pos += size;
+                if (charDelay > 0)
+                    Thread.sleep(charDelay);
+                else if (lineDelay > 0 && (data[offset + pos - 1] == '\n' || data[offset + pos - 1] == '\r'))
+                    Thread.sleep(lineDelay);
+            }
+        } catch (InterruptedIOException e) {
+            InterruptedIOException partial = new InterruptedIOException("Write timeout, " + (pos + e.bytesTransferred) + " of " + len + " bytes written");
+            partial.bytesTransferred = pos + e.bytesTransferred;
+            throw partial;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException partial = new InterruptedIOException("Write interrupted, " + pos + " of " + len + " bytes written");
+            partial.bytesTransferred = pos;
+            throw partial;
+        }
+    }
+
+    private void writePacket(UsbSerialPort port, int size) throws IOException {
+        int timeout = WRITE_TIMEOUT;
+        if (mFormat != null)
+            timeout = (int) Math.min(Integer.MAX_VALUE, WRITE_TIMEOUT + 2 * mFormat.transmitTimeMillis(ADAPTER_FIFO_SIZE + size));
+        port.write(mPacket, size, timeout);
+    }
+
+    private static int getPacketSize(UsbSerialPort port) {
+        try {
+            int size = port.getWriteEndpoint().getMaxPacketSize();
+            if (size > 0) return size;
+        } catch (Exception e) {
+            // Some drivers don't expose the endpoint
+        }
+        return DEFAULT_PACKET_SIZE;
     }
 
     public void close() {
@@ -69,6 +333,7 @@ public class UsbSerialThread extends Thread {
             e.printStackTrace();
         }
         mSerialPort = null;
+        mRing.close();
     }
 
     private void markStopped()
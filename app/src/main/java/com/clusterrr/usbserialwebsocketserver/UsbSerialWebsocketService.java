@@ -7,6 +7,7 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.ServiceInfo;
 import android.graphics.BitmapFactory;
 import android.hardware.usb.UsbDeviceConnection;
@@ -28,14 +29,19 @@ import com.hoho.android.usbserial.driver.UsbSerialProber;
 import com.hoho.android.usbserial.driver.ProbeTable;
 import com.hoho.android.usbserial.driver.Ch34xSerialDriver;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
+import java.net.URI;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.UUID;
 
 public class UsbSerialWebsocketService extends Service {
     final static String TAG = "UsbSerialWebSocket";
@@ -49,11 +55,27 @@ public class UsbSerialWebsocketService extends Service {
     final static String KEY_PARITY = "parity";
     final static String KEY_REMOVE_LF = "remove_lf";
     final static String KEY_LAST_STATE = "last_state";
+    final static String KEY_USE_TLS = "use_tls";
+    final static String KEY_CHAR_DELAY = "char_delay";
+    final static String KEY_LINE_DELAY = "line_delay";
+    final static String KEY_KEYSTORE_PASSWORD = "keystore_password";
+    final static String KEY_UPLINK_URL = "uplink_url";
+    final static String KEY_DEVICE_ID = "device_id";
+    final static String KEY_LOCAL_IPC = "local_ipc";
+    final static String KEY_FAN_OUT_WAIT = "fan_out_wait";
 
     boolean mStarted = false;
     //UsbSerialPort mSerialPort = null;
     UsbSerialThread mUsbSerialThread = null;
     WebSocketServerThread mWebSocketServerThread = null;
+    SerialWriteScheduler mWriteScheduler = null;
+    ModbusGateway mModbusGateway = null;
+    TelemetryConflator mTelemetry = null;
+    UplinkThread mUplinkThread = null;
+    LocalEndpoint mLocalEndpoint = null;
+    volatile FirmwareUpload mUpload = null;
+    SerialFormat mSerialFormat = null;
+    TriggerEngine mTriggers = null;
 
     int mWsPort = 8080;
 
@@ -148,19 +170,45 @@ public class UsbSerialWebsocketService extends Service {
                     }
                     if (serialPort != null) {
                         serialPort.open(connection);
-                        serialPort.setParameters(
+                        mSerialFormat = new SerialFormat(
                                 intent.getIntExtra(KEY_BAUD_RATE, 115200),
                                 intent.getIntExtra(KEY_DATA_BITS, 8),
                                 intent.getIntExtra(KEY_STOP_BITS, UsbSerialPort.STOPBITS_1),
                                 intent.getIntExtra(KEY_PARITY, UsbSerialPort.PARITY_NONE));
+                        serialPort.setParameters(mSerialFormat.baudRate, mSerialFormat.dataBits, mSerialFormat.stopBits, mSerialFormat.parity);
                         InetSocketAddress address = intent.getBooleanExtra(KEY_LOCAL_ONLY, false) ?
                                 new InetSocketAddress("127.0.0.1", intent.getIntExtra(KEY_WS_PORT, 8080)) :
                                 new InetSocketAddress(intent.getIntExtra(KEY_WS_PORT, 8080));
                         mUsbSerialThread = new UsbSerialThread(this, serialPort);
+                        mUsbSerialThread.setWaitStrategy(SerialRing.WaitStrategy.values()[intent.getIntExtra(KEY_FAN_OUT_WAIT, 0)]);
+                        mUsbSerialThread.setPacing(mSerialFormat, intent.getIntExtra(KEY_CHAR_DELAY, 0), intent.getIntExtra(KEY_LINE_DELAY, 0));
+                        mTriggers = TriggerEngine.load(this);
+                        mUsbSerialThread.setTriggers(mTriggers);
+                        mWriteScheduler = new SerialWriteScheduler(mUsbSerialThread::write, mSerialFormat);
+                        mModbusGateway = new ModbusGateway(mUsbSerialThread::write, mWriteScheduler, mSerialFormat);
+                        mTelemetry = new TelemetryConflator();
+                        mTelemetry.setFormats(TelemetryConflator.load(this));
                         mWebSocketServerThread = new WebSocketServerThread(this, address);
                         mWebSocketServerThread.setRemoveLf(intent.getBooleanExtra(KEY_REMOVE_LF, true));
+                        if (intent.getBooleanExtra(KEY_USE_TLS, false)) {
+                            String password = intent.getStringExtra(KEY_KEYSTORE_PASSWORD);
+                            mWebSocketServerThread.useTls(TlsServerFactory.create(this, password == null ? "" : password));
+                        }
+                        if (intent.getBooleanExtra(KEY_LOCAL_IPC, false))
+                            mLocalEndpoint = new LocalEndpoint(this);
+                        String uplinkUrl = intent.getStringExtra(KEY_UPLINK_URL);
+                        if (uplinkUrl != null && !uplinkUrl.trim().isEmpty())
+                            mUplinkThread = new UplinkThread(this, new URI(uplinkUrl.trim()), getUplinkDeviceId(),
+                                    intent.getIntExtra(KEY_PORT_ID, 0), mWebSocketServerThread.getHistory());
                         mUsbSerialThread.start();
+                        mWriteScheduler.start();
+                        mModbusGateway.start();
+                        mTelemetry.start();
                         mWebSocketServerThread.start();
+                        if (mUplinkThread != null)
+                            mUplinkThread.start();
+                        if (mLocalEndpoint != null)
+                            mLocalEndpoint.start();
                         success = true;
                     }
                 }
@@ -191,6 +239,17 @@ public class UsbSerialWebsocketService extends Service {
         return START_STICKY;
     }
 
+    // Identifies this phone to the aggregator, generated once and kept across restarts
+    private String getUplinkDeviceId() {
+        SharedPreferences prefs = getApplicationContext().getSharedPreferences(getString(R.string.app_name), Context.MODE_PRIVATE);
+        String id = prefs.getString(KEY_DEVICE_ID, null);
+        if (id == null) {
+            id = UUID.randomUUID().toString();
+            prefs.edit().putString(KEY_DEVICE_ID, id).apply();
+        }
+        return id;
+    }
+
     public static UsbDeviceStatus getDeviceStatus(Context context) {
         UsbManager manager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
         
@@ -240,6 +299,29 @@ public class UsbSerialWebsocketService extends Service {
     {
         NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         nm.cancel(1);
+        if (mWriteScheduler != null) {
+            mWriteScheduler.close();
+            mWriteScheduler = null;
+        }
+        if (mLocalEndpoint != null) {
+            mLocalEndpoint.close();
+            mLocalEndpoint = null;
+        }
+        FirmwareUpload upload = mUpload;
+        if (upload != null)
+            upload.close();
+        if (mUplinkThread != null) {
+            mUplinkThread.close();
+            mUplinkThread = null;
+        }
+        if (mModbusGateway != null) {
+            mModbusGateway.close();
+            mModbusGateway = null;
+        }
+        if (mTelemetry != null) {
+            mTelemetry.close();
+            mTelemetry = null;
+        }
         if (mWebSocketServerThread != null) {
             mWebSocketServerThread.close();
             mWebSocketServerThread = null;
@@ -264,6 +346,18 @@ public class UsbSerialWebsocketService extends Service {
             return mStarted;
         }
         public void setOnStartStopListener(IOnStartStopListener listener) { onStartStopListener = listener; }
+        public String getTlsStats()
+        {
+            WebSocketServerThread server = mWebSocketServerThread;
+            if (server == null || !server.isTls()) return null;
+            int handshakes = server.getTlsHandshakes();
+            int resumed = server.getTlsResumed();
+            return getString(R.string.tls_stats, handshakes, resumed, handshakes == 0 ? 0 : resumed * 100 / handshakes);
+        }
+        public LocalEndpoint getLocalEndpoint()
+        {
+            return mStarted ? mLocalEndpoint : null;
+        }
         public void started() { if (onStartStopListener != null) onStartStopListener.usbSerialServiceStarted(); }
         public void stopped() { if (onStartStopListener != null) onStartStopListener.usbSerialServiceStopped(); }
     }
@@ -282,16 +376,77 @@ public class UsbSerialWebsocketService extends Service {
     }
 
     public void writeSerialPort(byte[] buffer, int pos, int len) throws IOException {
+        writeSerialPort(buffer, pos, len, false);
+    }
+
+    // paced for data typed by clients, see UsbSerialThread.write()
+    public void writeSerialPort(byte[] buffer, int pos, int len, boolean paced) throws IOException {
         if (mUsbSerialThread == null) return;
-        if ((pos != 0) || (buffer.length != len)) {
-            byte[] writeBuffer = new byte[len];
-            System.arraycopy(buffer, pos, writeBuffer, 0, len);
-            mUsbSerialThread.write(writeBuffer);
-        } else {
-            mUsbSerialThread.write(buffer);
+        mUsbSerialThread.write(buffer, pos, len, paced);
+        if (BuildConfig.DEBUG) {
+            Log.d(UsbSerialWebsocketService.TAG, "Written " + len + " bytes to the port");
         }
     }
 
+    public synchronized TriggerEngine getTriggers() {
+        return mTriggers;
+    }
+
+    // Stores the rules and puts them to work right away
+    public synchronized void setTriggers(TriggerEngine triggers) throws IOException {
+        TriggerEngine.save(this, triggers);
+        mTriggers = triggers;
+        if (mUsbSerialThread != null)
+            mUsbSerialThread.setTriggers(triggers);
+    }
+
+    public void notifyTrigger(TriggerRule rule) {
+        WebSocketServerThread server = mWebSocketServerThread;
+        if (server == null) return;
+        JSONObject event = ClientEvents.create(ClientEvents.TRIGGER);
+        try {
+            event.put("rule", rule.id);
+        } catch (JSONException e) {
+            // Can't happen with strings
+        }
+        server.sendEvent(event);
+    }
+
+    public SerialWriteScheduler getWriteScheduler() {
+        return mWriteScheduler;
+    }
+
+    public ModbusGateway getModbusGateway() {
+        return mModbusGateway;
+    }
+
+    public TelemetryConflator getTelemetry() {
+        return mTelemetry;
+    }
+
+    // Stores the formats and puts them to work right away
+    public synchronized void setTelemetryFormats(List<TelemetryFormat> formats) throws IOException {
+        TelemetryConflator.save(this, formats);
+        if (mTelemetry != null)
+            mTelemetry.setFormats(formats);
+    }
+
+    // One upload at a time, it has the port to itself
+    public synchronized boolean beginUpload(FirmwareUpload upload) {
+        if (mUpload != null) return false;
+        mUpload = upload;
+        return true;
+    }
+
+    public synchronized void endUpload(FirmwareUpload upload) {
+        if (mUpload == upload)
+            mUpload = null;
+    }
+
+    public FirmwareUpload getUpload() {
+        return mUpload;
+    }
+
     public void writeClients(byte[] buffer) throws IOException {
         if (mWebSocketServerThread == null) return;
         mWebSocketServerThread.write(buffer);
@@ -301,4 +456,13 @@ public class UsbSerialWebsocketService extends Service {
         if (mWebSocketServerThread == null) return;
         mWebSocketServerThread.write(buffer, pos, len);
     }
+
+    // timestamp is when the data was read from the port, see Envelope.nowMicros()
+    public void writeClients(byte[] buffer, int pos, int len, long timestamp) throws IOException {
+        LocalEndpoint localEndpoint = mLocalEndpoint;
+        if (localEndpoint != null)
+            localEndpoint.write(buffer, pos, len);
+        if (mWebSocketServerThread == null) return;
+        mWebSocketServerThread.write(buffer, pos, len, timestamp);
+    }
 }
@@ -0,0 +1,68 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import java.nio.ByteBuffer;
+
+public class Utf8 {
+    private Utf8() {
+    }
+
+    // Number of bytes encode() produces for the whole string
+    public static int encodedLength(String s) {
+        int len = 0;
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                len += 1;
+            } else if (c < 0x800) {
+                len += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                len += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                len += 1;
+            } else {
+                len += 3;
+            }
+        }
+        return len;
+    }
+
+    // Encodes s starting at char index from into dst until dst is full.
+    // Returns the index of the first char that did not fit, s.length() when done.
+    // Unpaired surrogates become '?', like String.getBytes() does.
+    public static int encode(String s, int from, ByteBuffer dst) {
+        int i = from;
+        int n = s.length();
+        while (i < n) {
+            char c = s.charAt(i);
+            int room = dst.remaining();
+            if (c < 0x80) {
+                if (room < 1) break;
+                dst.put((byte) c);
+            } else if (c < 0x800) {
+                if (room < 2) break;
+                dst.put((byte) (0xC0 | (c >> 6)));
+                dst.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                if (room < 4) break;
+                int cp = Character.toCodePoint(c, s.charAt(i + 1));
+                dst.put((byte) (0xF0 | (cp >> 18)));
+                dst.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                dst.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                dst.put((byte) (0x80 | (cp & 0x3F)));
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                if (room < 1) break;
+                dst.put((byte) '?');
+            } else {
+                if (room < 3) break;
+                dst.put((byte) (0xE0 | (c >> 12)));
+                dst.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                dst.put((byte) (0x80 | (c & 0x3F)));
+            }
+            i++;
+        }
+        return i;
+    }
+}
@@ -3,56 +3,468 @@ package com.clusterrr.usbserialwebsocketserver;
 import android.util.Log;
 
 import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WebSocketServerFactory;
 import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.DefaultWebSocketServerFactory;
 import org.java_websocket.server.WebSocketServer;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSession;
 
 public class WebSocketServerThread extends WebSocketServer {
+    final static int FRAME_POOL_SIZE = 64;
+    final static int WRITE_POOL_SIZE = 64;
+    final static int CLOSE_QUOTA_EXCEEDED = 1008; // policy violation
+    final static int PROGRESS_INTERVAL = 250; // ms
+    final static int WRITE_BUFFER_SIZE = 1024;
+    final static int HISTORY_SIZE = 256 * 1024;
+    final static int HISTORY_CHUNKS = 4096;
+    final static int REPLAY_BATCH = 32; // chunks copied per hold of the history lock
+    final static int SESSION_TIMEOUT = 10 * 60 * 1000; // ms
+    final static int MAX_SESSIONS = 256;
+
     private final UsbSerialWebsocketService mUsbSerialWebsocketService;
-    private final List<WebSocket> mClients;
+    private final ControlHandler mControlHandler;
+    // Copy-on-write snapshot, so the fan-out loop never allocates an iterator
+    private volatile WebSocket[] mClients = new WebSocket[0];
+    private final BufferPool mFramePool;
+    private final BufferPool mWritePool;
+    private final TextFrameEncoder mTextFrameEncoder = new TextFrameEncoder();
+    // Also guards joining clients against the fan-out, see catchUp()
+    private final StreamHistory mHistory = new StreamHistory(HISTORY_SIZE, HISTORY_CHUNKS);
+    // Session id -> when its client disconnected, 0 while connected
+    private final HashMap<String, Long> mSessions = new HashMap<>();
+    private final SecureRandom mRandom = new SecureRandom();
     private boolean mRemoveLf = true;
+    private boolean mTls = false;
+    private final AtomicInteger mTlsHandshakes = new AtomicInteger();
+    private final AtomicInteger mTlsResumed = new AtomicInteger();
 
     public WebSocketServerThread(UsbSerialWebsocketService UsbSerialWebsocketService, InetSocketAddress address) {
         super(address);
         mUsbSerialWebsocketService = UsbSerialWebsocketService;
-        mClients = new ArrayList<>();
+        mControlHandler = new ControlHandler(UsbSerialWebsocketService);
+        mFramePool = new BufferPool("frames", FRAME_POOL_SIZE, Math.max(TextFrameEncoder.maxFrameSize(UsbSerialThread.READ_BUFFER_SIZE),
+                Envelope.maxFrameSize(UsbSerialThread.READ_BUFFER_SIZE)));
+        mWritePool = new BufferPool("serial writes", WRITE_POOL_SIZE, WRITE_BUFFER_SIZE);
+        setWebSocketFactory(new PooledWebSocketServerFactory(new DefaultWebSocketServerFactory(), mFramePool));
         // 设置连接超时
         setConnectionLostTimeout(60);
     }
 
+    // Must be called before start()
+    public void useTls(WebSocketServerFactory sslFactory) {
+        setWebSocketFactory(new PooledWebSocketServerFactory(sslFactory, mFramePool));
+        mTls = true;
+    }
+
+    public boolean isTls() {
+        return mTls;
+    }
+
     @Override
     public void onOpen(WebSocket conn, ClientHandshake handshake) {
         Log.i(UsbSerialWebsocketService.TAG, "WebSocket connected: " + conn.getRemoteSocketAddress());
-        mClients.add(conn);
+        if (mTls)
+            countHandshake(conn);
+        ClientState state = new ClientState(new ResourceDescriptor(conn.getResourceDescriptor()));
+        if (state.isControl() || state.isModbus()) {
+            conn.setAttachment(state);
+            return;
+        }
+        if (state.isUpload()) {
+            conn.setAttachment(state);
+            startUpload(conn, state);
+            return;
+        }
+        if (state.isTelemetry()) {
+            conn.setAttachment(state);
+            startTelemetry(conn, state);
+            return;
+        }
+        SerialWriteScheduler scheduler = mUsbSerialWebsocketService.getWriteScheduler();
+        if (scheduler != null)
+            state.mWriter = scheduler.register(state.mDescriptor.getInt("weight", 1), state.mDescriptor.getInt("rate", 0), true,
+                    new WriteReporter(conn, state.mDescriptor.getBoolean("progress", false)));
+        conn.setAttachment(state);
+        if (state.mEnvelope)
+            openEnvelope(conn, state);
+        else
+            addClient(conn);
+    }
+
+    private void startUpload(WebSocket conn, ClientState state) {
+        FirmwareUpload upload;
+        try {
+            upload = new FirmwareUpload(mUsbSerialWebsocketService, conn, state.mDescriptor);
+        } catch (IllegalArgumentException e) {
+            FirmwareUpload.sendError(conn, FirmwareUpload.ERROR_INVALID_REQUEST, e.getMessage(), 0);
+            conn.close();
+            return;
+        }
+        if (!mUsbSerialWebsocketService.beginUpload(upload)) {
+            FirmwareUpload.sendError(conn, FirmwareUpload.ERROR_BUSY, "Another upload is running", 0);
+            conn.close();
+            return;
+        }
+        state.mUpload = upload;
+        upload.start();
+    }
+
+    private void startTelemetry(WebSocket conn, ClientState state) {
+        TelemetryConflator telemetry = mUsbSerialWebsocketService.getTelemetry();
+        if (telemetry == null) {
+            conn.close();
+            return;
+        }
+        try {
+            telemetry.subscribe(conn, state.mDescriptor);
+        } catch (IllegalArgumentException e) {
+            ControlHandler.sendError(conn, e.getMessage());
+            conn.close();
+        }
+    }
+
+    // Starts or resumes the client's session. A client presenting ?session=<id>&last=<seq>
+    // gets everything after seq that is still in the history, and a gap event for the rest.
+    private void openEnvelope(WebSocket conn, ClientState state) {
+        String session = state.mDescriptor.get("session");
+        long last = state.mDescriptor.getLong("last", -1);
+        boolean resumed;
+        synchronized (mSessions) {
+            expireSessions();
+            resumed = session != null && mSessions.containsKey(session);
+            if (!resumed)
+                session = newSessionId();
+            mSessions.put(session, 0L);
+        }
+        state.mSession = session;
+
+        long from;
+        synchronized (mHistory) {
+            long next = mHistory.getNextSeq();
+            from = resumed && last >= 0 ? Math.min(last + 1, next) : next;
+        }
+        JSONObject event = ClientEvents.create(ClientEvents.SESSION);
+        try {
+            event.put("session", session);
+            event.put("resumed", resumed);
+            event.put("seq", from);
+        } catch (JSONException e) {
+            // Can't happen with strings and numbers
+        }
+        ClientEvents.send(conn, event);
+        long replayed;
+        try {
+            replayed = catchUp(conn, from);
+        } catch (InterruptedException e) {
+            // Stopping. Live data after a replay with a hole in it would look complete, so no client.
+            Thread.currentThread().interrupt();
+            conn.close();
+            return;
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(UsbSerialWebsocketService.TAG, "Session " + session + (resumed ? " resumed, " : " started, ") + replayed + " chunks replayed");
+        }
+    }
+
+    // Replays everything from seq from on and adds the client, returns the number of chunks replayed.
+    // Chunks are copied in batches under the history lock and queued outside of it, so a long catch
+    // up doesn't hold up the fan-out. The fan-out appends to the history and takes the client list
+    // under the same lock, so the last batch is queued and the client added there, and each chunk
+    // is either replayed here or sent live, never both or neither.
+    private long catchUp(WebSocket conn, long from) throws InterruptedException {
+        PooledBuffer[] frames = new PooledBuffer[REPLAY_BATCH];
+        long replayed = 0;
+        while (conn.isOpen()) {
+            // Frames are taken before the lock, should the pool be empty
+            int count;
+            synchronized (mHistory) {
+                count = (int) Math.max(0, Math.min(REPLAY_BATCH, mHistory.getNextSeq() - Math.max(from, mHistory.getFirstSeq())));
+            }
+            for (int i = 0; i < count; i++)
+                frames[i] = mFramePool.acquire();
+            try {
+                long gapFrom = -1;
+                long gapTo = -1;
+                int filled = 0;
+                synchronized (mHistory) {
+                    if (from < mHistory.getFirstSeq()) {
+                        gapFrom = from;
+                        gapTo = mHistory.getFirstSeq() - 1;
+                        from = mHistory.getFirstSeq();
+                    }
+                    long next = mHistory.getNextSeq();
+                    while (filled < count && from < next)
+                        copyChunk(frames[filled++], from++);
+                    if (from == next) {
+                        if (gapFrom >= 0)
+                            sendGap(conn, gapFrom, gapTo);
+                        enqueueAll(conn, frames, filled);
+                        addClient(conn);
+                        return replayed + filled;
+                    }
+                }
+                if (gapFrom >= 0)
+                    sendGap(conn, gapFrom, gapTo);
+                enqueueAll(conn, frames, filled);
+                replayed += filled;
+            } finally {
+                // Whatever wasn't queued
+                for (int i = 0; i < count; i++) {
+                    if (frames[i] != null) frames[i].release();
+                    frames[i] = null;
+                }
+            }
+        }
+        return replayed;
+    }
+
+    private void copyChunk(PooledBuffer frame, long seq) {
+        ByteBuffer buffer = frame.buffer();
+        Envelope.putHeader(buffer, seq, mHistory.getTimestamp(seq), mHistory.getLength(seq));
+        mHistory.get(seq, buffer);
+        buffer.flip();
+    }
+
+    // Hands over frames[0] to frames[count - 1], setting each to null as it goes
+    private void enqueueAll(WebSocket conn, PooledBuffer[] frames, int count) throws InterruptedException {
+        for (int i = 0; i < count; i++) {
+            PooledBuffer frame = frames[i];
+            frames[i] = null;
+            enqueue(conn, frame);
+        }
+    }
+
+    // from and to are inclusive
+    private static void sendGap(WebSocket conn, long from, long to) {
+        JSONObject event = ClientEvents.create(ClientEvents.GAP);
+        try {
+            event.put("from", from);
+            event.put("to", to);
+        } catch (JSONException e) {
+            // Can't happen with numbers
+        }
+        ClientEvents.send(conn, event);
+    }
+
+    private String newSessionId() {
+        return Long.toHexString(mRandom.nextLong() | Long.MIN_VALUE);
+    }
+
+    // Caller holds mSessions
+    private void expireSessions() {
+        long now = System.currentTimeMillis();
+        String oldest = null;
+        long oldestTime = Long.MAX_VALUE;
+        Iterator<Map.Entry<String, Long>> it = mSessions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            long disconnected = entry.getValue();
+            if (disconnected == 0) continue;
+            if (now - disconnected > SESSION_TIMEOUT) {
+                it.remove();
+            } else if (disconnected < oldestTime) {
+                oldest = entry.getKey();
+                oldestTime = disconnected;
+            }
+        }
+        if (mSessions.size() >= MAX_SESSIONS && oldest != null)
+            mSessions.remove(oldest);
+    }
+
+    private void countHandshake(WebSocket conn) {
+        try {
+            SSLSession session = conn.getSSLSession();
+            // A resumed session keeps the creation time of the full handshake it came from
+            boolean resumed = session.getCreationTime() < getChannel((WebSocketImpl) conn).getAcceptedAt();
+            mTlsHandshakes.incrementAndGet();
+            if (resumed)
+                mTlsResumed.incrementAndGet();
+            if (BuildConfig.DEBUG) {
+                Log.d(UsbSerialWebsocketService.TAG, "TLS " + session.getProtocol() + " " + session.getCipherSuite() + (resumed ? ", resumed" : ", full handshake"));
+            }
+        } catch (Exception e) {
+            Log.w(UsbSerialWebsocketService.TAG, "Can't get TLS session: " + e.getMessage());
+        }
+    }
+
+    public int getTlsHandshakes() {
+        return mTlsHandshakes.get();
+    }
+
+    public int getTlsResumed() {
+        return mTlsResumed.get();
     }
 
     @Override
     public void onClose(WebSocket conn, int code, String reason, boolean remote) {
         Log.i(UsbSerialWebsocketService.TAG, "WebSocket disconnected: " + conn.getRemoteSocketAddress());
-        mClients.remove(conn);
+        removeClient(conn);
+        unregisterWriter(conn);
+        ClientState state = conn.getAttachment();
+        if (state != null && state.mUpload != null)
+            state.mUpload.abort(FirmwareUpload.ERROR_CANCELLED, "Connection closed");
+        TelemetryConflator telemetry = mUsbSerialWebsocketService.getTelemetry();
+        if (state != null && state.isTelemetry() && telemetry != null)
+            telemetry.unsubscribe(conn);
+        if (state != null && state.mSession != null) {
+            synchronized (mSessions) {
+                if (mSessions.containsKey(state.mSession))
+                    mSessions.put(state.mSession, System.currentTimeMillis());
+            }
+        }
+    }
+
+    private void unregisterWriter(WebSocket conn) {
+        ClientState state = conn.getAttachment();
+        SerialWriteScheduler scheduler = mUsbSerialWebsocketService.getWriteScheduler();
+        if (state != null && state.mWriter != null && scheduler != null)
+            scheduler.unregister(state.mWriter);
     }
 
     @Override
     public void onMessage(WebSocket conn, String message) {
         // 直接处理文本消息，发送到串口
-        Log.i(UsbSerialWebsocketService.TAG, "收到文本消息: " + message);
-        
+        if (BuildConfig.DEBUG) {
+            Log.d(UsbSerialWebsocketService.TAG, "收到文本消息: " + message);
+        }
+
+        ClientState state = conn.getAttachment();
+        if (state != null && state.isControl()) {
+            mControlHandler.handle(conn, message);
+            return;
+        }
+        if (state != null && state.isModbus()) {
+            ModbusGateway modbus = mUsbSerialWebsocketService.getModbusGateway();
+            if (modbus != null)
+                modbus.submit(conn, message);
+            return;
+        }
+        if (state != null && state.isUpload()) {
+            if (state.mUpload != null)
+                state.mUpload.onMessage(message);
+            return;
+        }
+        if (state != null && state.isTelemetry()) {
+            // 遥测连接只读，不写入串口
+            return;
+        }
+
+        Tracer.begin(Tracer.WS_MESSAGE);
         try {
+            SerialWriteScheduler scheduler = mUsbSerialWebsocketService.getWriteScheduler();
+            if (scheduler != null && state != null && state.mWriter != null) {
+                // 经过调度器按配额发送到串口
+                int len = Utf8.encodedLength(message);
+                SerialWriteScheduler.SubmitResult result = scheduler.admit(state.mWriter, len);
+                if (result != SerialWriteScheduler.SubmitResult.ACCEPTED) {
+                    rejectWrite(conn, state, len, result);
+                    return;
+                }
+                int pos = 0;
+                do {
+                    PooledBuffer pooled = mWritePool.acquire();
+                    pos = Utf8.encode(message, pos, pooled.buffer());
+                    pooled.buffer().flip();
+                    scheduler.enqueue(state.mWriter, pooled);
+                } while (pos < message.length());
+                return;
+            }
             // 直接发送文本到串口，不进行任何格式转换
-            mUsbSerialWebsocketService.writeSerialPort(message.getBytes("UTF-8"));
-            Log.i(UsbSerialWebsocketService.TAG, "文本消息已发送到串口");
+            int pos = 0;
+            do {
+                PooledBuffer pooled = mWritePool.acquire();
+                try {
+                    pos = Utf8.encode(message, pos, pooled.buffer());
+                    mUsbSerialWebsocketService.writeSerialPort(pooled.array(), 0, pooled.buffer().position(), true);
+                } finally {
+                    pooled.release();
+                }
+            } while (pos < message.length());
         } catch (Exception e) {
             Log.e(UsbSerialWebsocketService.TAG, "发送文本消息到串口失败", e);
+        } finally {
+            Tracer.end(Tracer.WS_MESSAGE, message.length());
+        }
+    }
+
+    private void rejectWrite(WebSocket conn, ClientState state, int len, SerialWriteScheduler.SubmitResult result) {
+        Log.w(UsbSerialWebsocketService.TAG, "Serial write quota exceeded by " + conn.getRemoteSocketAddress() + ", " + len + " bytes rejected");
+        JSONObject event = ClientEvents.create(ClientEvents.WRITE_REJECTED);
+        try {
+            event.put("bytes", len);
+            event.put("queued", state.mWriter.getQueued());
+        } catch (JSONException e) {
+            // Can't happen with numbers
+        }
+        ClientEvents.send(conn, event);
+        if (result == SerialWriteScheduler.SubmitResult.QUOTA_EXCEEDED)
+            conn.close(CLOSE_QUOTA_EXCEEDED, "Serial write quota exceeded");
+    }
+
+    // Tells the sender how its writes are going, progress only if it asked for it with ?progress=1
+    private static class WriteReporter implements SerialWriteScheduler.Listener {
+        private final WebSocket mConn;
+        private final boolean mProgress;
+        private long mWritten = 0;
+        private long mLastReport = 0;
+
+        WriteReporter(WebSocket conn, boolean progress) {
+            mConn = conn;
+            mProgress = progress;
+        }
+
+        @Override
+        public void onWritten(SerialWriteScheduler.Client client, int written, int queued) {
+            mWritten += written;
+            if (!mProgress) return;
+            long now = System.currentTimeMillis();
+            if (queued > 0 && now - mLastReport < PROGRESS_INTERVAL) return;
+            mLastReport = now;
+            JSONObject event = ClientEvents.create(ClientEvents.WRITE_PROGRESS);
+            try {
+                event.put("written", mWritten);
+                event.put("queued", queued);
+            } catch (JSONException e) {
+                // Can't happen with numbers
+            }
+            ClientEvents.send(mConn, event);
+        }
+
+        @Override
+        public void onWriteFailed(SerialWriteScheduler.Client client, int written, int lost, String error) {
+            mWritten += written;
+            JSONObject event = ClientEvents.create(ClientEvents.WRITE_FAILED);
+            try {
+                event.put("written", mWritten);
+                event.put("lost", lost);
+                event.put("error", error);
+            } catch (JSONException e) {
+                // Can't happen with numbers and strings
+            }
+            ClientEvents.send(mConn, event);
         }
     }
 
     @Override
     public void onMessage(WebSocket conn, ByteBuffer message) {
+        ClientState state = conn.getAttachment();
+        if (state != null && state.mUpload != null) {
+            state.mUpload.offer(message);
+            return;
+        }
         // 忽略二进制消息，只处理文本消息
         Log.i(UsbSerialWebsocketService.TAG, "收到二进制消息，已忽略");
     }
@@ -61,7 +473,8 @@ public class WebSocketServerThread extends WebSocketServer {
     public void onError(WebSocket conn, Exception ex) {
         Log.e(UsbSerialWebsocketService.TAG, "WebSocket error", ex);
         if (conn != null) {
-            mClients.remove(conn);
+            removeClient(conn);
+            unregisterWriter(conn);
         }
     }
 
@@ -75,29 +488,147 @@ public class WebSocketServerThread extends WebSocketServer {
     }
 
     public void write(byte[] data, int offset, int len) throws IOException {
-        List<WebSocket> toRemove = new ArrayList<>();
-        
-        // 将字节数据转换为文本发送
-        String text = new String(data, offset, len, "UTF-8");
-        
-        for (WebSocket client : mClients) {
+        write(data, offset, len, Envelope.nowMicros());
+    }
+
+    public void write(byte[] data, int offset, int len, long timestamp) throws IOException {
+        Tracer.begin(Tracer.FAN_OUT);
+        try {
+            fanOut(data, offset, len, timestamp);
+        } finally {
+            Tracer.end(Tracer.FAN_OUT, len);
+        }
+    }
+
+    private void fanOut(byte[] data, int offset, int len, long timestamp) throws IOException {
+        WebSocket[] clients;
+        long seq;
+        synchronized (mHistory) {
+            seq = mHistory.append(data, offset, len, timestamp);
+            clients = mClients;
+            // The uplink waits on the history for new data
+            mHistory.notifyAll();
+        }
+        if (clients.length == 0) {
+            mTextFrameEncoder.reset();
+            return;
+        }
+        int envelopeClients = 0;
+        for (WebSocket client : clients) {
+            if (isEnvelope(client)) envelopeClients++;
+            releasePolled(client);
+        }
+        int textClients = clients.length - envelopeClients;
+
+        // 将字节数据编码为文本帧，只编码一次
+        PooledBuffer text = null;
+        if (textClients > 0) {
+            text = mFramePool.acquire();
+            if (!mTextFrameEncoder.encode(data, offset, len, text.buffer())) {
+                text.release();
+                text = null;
+            } else if (BuildConfig.DEBUG) {
+                Log.d(UsbSerialWebsocketService.TAG, "发送文本到客户端: " + new String(text.array(), text.buffer().position(), text.buffer().remaining(), "UTF-8"));
+            }
+        } else {
+            mTextFrameEncoder.reset();
+        }
+        PooledBuffer envelope = null;
+        if (envelopeClients > 0) {
+            envelope = mFramePool.acquire();
+            Envelope.encode(seq, timestamp, data, offset, len, envelope.buffer());
+        }
+
+        for (WebSocket client : clients) {
+            boolean isEnvelope = isEnvelope(client);
+            PooledBuffer frame = isEnvelope ? envelope : text;
+            int left = isEnvelope ? --envelopeClients : --textClients;
+            if (frame == null) continue;
             try {
                 if (client.isOpen()) {
-                    // 直接发送文本消息
-                    client.send(text);
-                    Log.i(UsbSerialWebsocketService.TAG, "发送文本到客户端: " + text);
+                    // The last client of each kind takes the encoded frame itself, the others get a copy
+                    PooledBuffer out = left == 0 ? frame : copyFrame(frame);
+                    enqueue(client, out);
+                    if (out == envelope) envelope = null;
+                    if (out == text) text = null;
                 } else {
-                    toRemove.add(client);
+                    removeClient(client);
                 }
             } catch (Exception ex) {
                 Log.e(UsbSerialWebsocketService.TAG, "发送文本到客户端失败", ex);
-                toRemove.add(client);
+                removeClient(client);
             }
         }
-        
-        // Remove disconnected clients
-        for (WebSocket client : toRemove) {
-            mClients.remove(client);
+        if (text != null)
+            text.release();
+        if (envelope != null)
+            envelope.release();
+    }
+
+    // To every client receiving serial data
+    public void sendEvent(JSONObject event) {
+        String json = event.toString();
+        for (WebSocket client : mClients)
+            ClientEvents.send(client, json);
+    }
+
+    // Callers synchronize on it, see StreamHistory
+    public StreamHistory getHistory() {
+        return mHistory;
+    }
+
+    private static boolean isEnvelope(WebSocket client) {
+        ClientState state = client.getAttachment();
+        return state != null && state.mEnvelope;
+    }
+
+    private PooledBuffer copyFrame(PooledBuffer frame) {
+        PooledBuffer copy = mFramePool.acquire();
+        ByteBuffer src = frame.buffer();
+        System.arraycopy(src.array(), src.position(), copy.array(), 0, src.remaining());
+        copy.buffer().limit(src.remaining());
+        return copy;
+    }
+
+    // Hands a complete frame straight to the selector, bypassing Java-WebSocket's framing.
+    // The frame is released by PooledWebSocketServerFactory once it has left the queue,
+    // or when the connection closes, even if that happened after the client list was taken.
+    private void enqueue(WebSocket client, PooledBuffer frame) throws InterruptedException {
+        WebSocketImpl conn = (WebSocketImpl) client;
+        if (!getChannel(conn).track(frame)) {
+            frame.release();
+            return;
+        }
+        // Tracked already, the channel lets go of it if it never makes it into the queue
+        conn.outQueue.put(frame.buffer());
+        onWriteDemand(conn);
+    }
+
+    private void releasePolled(WebSocket client) {
+        WebSocketImpl conn = (WebSocketImpl) client;
+        getChannel(conn).releasePolled(conn.outQueue);
+    }
+
+    private static PooledWebSocketServerFactory.PooledByteChannel getChannel(WebSocketImpl conn) {
+        return (PooledWebSocketServerFactory.PooledByteChannel) conn.getChannel();
+    }
+
+    private synchronized void addClient(WebSocket conn) {
+        WebSocket[] clients = new WebSocket[mClients.length + 1];
+        System.arraycopy(mClients, 0, clients, 0, mClients.length);
+        clients[mClients.length] = conn;
+        mClients = clients;
+    }
+
+    private synchronized void removeClient(WebSocket conn) {
+        WebSocket[] clients = mClients;
+        for (int i = 0; i < clients.length; i++) {
+            if (clients[i] != conn) continue;
+            WebSocket[] newClients = new WebSocket[clients.length - 1];
+            System.arraycopy(clients, 0, newClients, 0, i);
+            System.arraycopy(clients, i + 1, newClients, i, clients.length - i - 1);
+            mClients = newClients;
+            return;
         }
     }
 
@@ -109,14 +640,20 @@ public class WebSocketServerThread extends WebSocketServer {
         }
         
         // Close all client connections
-        for (WebSocket client : new ArrayList<>(mClients)) {
+        for (WebSocket client : mClients) {
             try {
                 client.close();
             } catch (Exception e) {
                 Log.e(UsbSerialWebsocketService.TAG, "Error closing WebSocket client", e);
             }
         }
-        mClients.clear();
+        synchronized (this) {
+            mClients = new WebSocket[0];
+        }
+        if (BuildConfig.DEBUG) {
+            mFramePool.dumpLeaks();
+            mWritePool.dumpLeaks();
+        }
     }
 
     public void setRemoveLf(boolean removeLf) {
@@ -0,0 +1,71 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import java.util.Arrays;
+
+// Log-linear histogram of microsecond values: 16 buckets per power of two, so any
+// percentile is off by at most 1/16 of its value. Fixed size, recording never allocates.
+public class LatencyHistogram {
+    private final static int SUB_BUCKETS = 16;
+    private final static int SUB_BITS = 4;
+    private final static int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mTotal = 0;
+    private long mMax = 0;
+
+    public synchronized void record(long micros) {
+        if (micros < 0) micros = 0;
+        mCounts[index(micros)]++;
+        mTotal++;
+        mMax = Math.max(mMax, micros);
+    }
+
+    public synchronized void add(LatencyHistogram other) {
+        synchronized (other) {
+            for (int i = 0; i < BUCKETS; i++)
+                mCounts[i] += other.mCounts[i];
+            mTotal += other.mTotal;
+            mMax = Math.max(mMax, other.mMax);
+        }
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(mCounts, 0);
+        mTotal = 0;
+        mMax = 0;
+    }
+
+    public synchronized long getCount() {
+        return mTotal;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    // Upper bound of the bucket holding the given percentile, 0 when empty
+    public synchronized long percentile(double percent) {
+        if (mTotal == 0) return 0;
+        long rank = (long) Math.ceil(mTotal * percent / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= Math.max(1, rank))
+                return Math.min(mMax, upperBound(i));
+        }
+        return mMax;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,194 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// A serial device behind a UsbSerialPort, generating traffic at the line rate of the format.
+// Like a real adapter it has a receive FIFO: if the reader falls behind, records that don't
+// fit are dropped and counted as overruns, and don't get a sequence number.
+public class SimulatedSerialPort implements InvocationHandler {
+    final static int DEVICE_SOURCE = 0;
+
+    private final SerialFormat mFormat;
+    private final SoakPattern mPattern;
+    private final int mBurstLines;
+    private final int mBurstPause;
+    private final byte[] mFifo;
+    private int mHead = 0;
+    private int mCount = 0;
+    private boolean mClosed = false;
+    private long mTxDeadline = 0;
+    private final UsbSerialPort mPort;
+    private final Thread mGenerator;
+    private final AtomicLong mEmitted = new AtomicLong();
+    private final AtomicLong mOverruns = new AtomicLong();
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+
+    // burstLines and burstPause (ms) only apply to the LOGS pattern
+    public SimulatedSerialPort(SerialFormat format, SoakPattern pattern, int fifoSize, int burstLines, int burstPause) {
+        mFormat = format;
+        mPattern = pattern;
+        mBurstLines = Math.max(1, burstLines);
+        mBurstPause = Math.max(0, burstPause);
+        mFifo = new byte[fifoSize];
+        mPort = (UsbSerialPort) Proxy.newProxyInstance(UsbSerialPort.class.getClassLoader(), new Class<?>[]{UsbSerialPort.class}, this);
+        mGenerator = new Thread(this::generate, "SimulatedSerialDevice");
+        mGenerator.setDaemon(true);
+    }
+
+    public UsbSerialPort getPort() {
+        return mPort;
+    }
+
+    public void start() {
+        if (mPattern != SoakPattern.ECHO)
+            mGenerator.start();
+    }
+
+    // Stops generating, buffered data can still be read
+    public void stopGenerating() {
+        mGenerator.interrupt();
+    }
+
+    // Sequence number of the last record the device emitted, -1 if none yet
+    public long getLastSeq() {
+        return mEmitted.get() - 1;
+    }
+
+    public long getOverruns() {
+        return mOverruns.get();
+    }
+
+    public long getBytesRead() {
+        return mBytesRead.get();
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    private void generate() {
+        long next = System.nanoTime();
+        long lines = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (mPattern == SoakPattern.LOGS && lines > 0 && lines % mBurstLines == 0) {
+                    Thread.sleep(mBurstPause);
+                    next = System.nanoTime();
+                }
+                long seq = mEmitted.get();
+                byte[] record = SoakRecord.encode(mPattern, DEVICE_SOURCE, seq, System.nanoTime());
+                // The record leaves the device after it took its time on the wire
+                next += record.length * mFormat.charTimeNanos();
+                long now = System.nanoTime();
+                if (next - now > 1_000_000L)
+                    LockSupport.parkNanos(next - now);
+                else if (now - next > 1_000_000_000L)
+                    next = now; // way behind, don't try to catch up in one burst
+                if (Thread.interrupted()) break;
+                if (receive(record, record.length))
+                    mEmitted.incrementAndGet();
+                else
+                    mOverruns.incrementAndGet();
+                lines++;
+            }
+        } catch (InterruptedException e) {
+            // Stopping
+        }
+    }
+
+    // Puts data into the FIFO the host reads from, all or nothing
+    private synchronized boolean receive(byte[] data, int len) {
+        if (mClosed || mCount + len > mFifo.length) return false;
+        int tail = (mHead + mCount) % mFifo.length;
+        int first = Math.min(len, mFifo.length - tail);
+        System.arraycopy(data, 0, mFifo, tail, first);
+        System.arraycopy(data, first, mFifo, 0, len - first);
+        mCount += len;
+        notifyAll();
+        return true;
+    }
+
+    private synchronized int read(byte[] dest, int length, int timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (mCount == 0 && !mClosed) {
+            if (timeout == 0) {
+                wait();
+            } else {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return 0;
+                wait(left);
+            }
+        }
+        if (mCount == 0) return -1; // closed, UsbSerialThread treats it as a disconnect
+        int len = Math.min(length, mCount);
+        int first = Math.min(len, mFifo.length - mHead);
+        System.arraycopy(mFifo, mHead, dest, 0, first);
+        System.arraycopy(mFifo, 0, dest, first, len - first);
+        mHead = (mHead + first + (len - first)) % mFifo.length;
+        mCount -= len;
+        mBytesRead.addAndGet(len);
+        return len;
+    }
+
+    // Takes as long as the data needs on the wire, then echoes it if asked to
+    private void write(byte[] src, int len) throws IOException {
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (mClosed) throw new IOException("Port closed");
+            mTxDeadline = Math.max(mTxDeadline, now) + len * mFormat.charTimeNanos();
+        }
+        long wait = mTxDeadline - now;
+        if (wait > 0)
+            LockSupport.parkNanos(wait);
+        mBytesWritten.addAndGet(len);
+        if (mPattern == SoakPattern.ECHO && !receive(src, len))
+            mOverruns.incrementAndGet();
+    }
+
+    private synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "read":
+                byte[] dest = (byte[]) args[0];
+                if (args.length == 2)
+                    return read(dest, dest.length, (Integer) args[1]);
+                return read(dest, (Integer) args[1], (Integer) args[2]);
+            case "write":
+                byte[] src = (byte[]) args[0];
+                write(src, args.length == 2 ? src.length : (Integer) args[1]);
+                return null;
+            case "close":
+                close();
+                return null;
+            case "isOpen":
+                synchronized (this) {
+                    return !mClosed;
+                }
+            case "toString":
+                return "SimulatedSerialPort(" + mPattern + ", " + mFormat.baudRate + " baud)";
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+        }
+        // Control lines, endpoints and the rest: whatever a port without them would say
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        return null;
+    }
+}
@@ -0,0 +1,178 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+// A WebSocket client that reassembles the serial stream into records and checks them.
+// A slow client sleeps in every onMessage, so the server sees TCP backpressure from it.
+public class SoakClient extends WebSocketClient {
+    private final int mId;
+    private final SoakPattern mPattern;
+    private final int mSlowDelay;
+    private final StringBuilder mLine = new StringBuilder(256);
+    private boolean mSynced = false;
+    // Next sequence number expected from each source
+    private final Map<Integer, Long> mExpected = new HashMap<>();
+    private final Map<Integer, Long> mLastSeen = new HashMap<>();
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final Totals mTotals = new Totals();
+    private long mSentSeq = 0;
+
+    // Counters since the start, deltas are up to the caller
+    public static class Totals {
+        public long bytes;
+        public long records;
+        public long lost;
+        public long reordered;
+        public long corrupt;
+        public long events;
+        public long rejected;
+        public long connects;
+        public long disconnects;
+
+        public void add(Totals other) {
+            bytes += other.bytes;
+            records += other.records;
+            lost += other.lost;
+            reordered += other.reordered;
+            corrupt += other.corrupt;
+            events += other.events;
+            rejected += other.rejected;
+            connects += other.connects;
+            disconnects += other.disconnects;
+        }
+    }
+
+    // id is the record source for echo traffic, slowDelay in ms, 0 for a fast client
+    public SoakClient(URI uri, int id, SoakPattern pattern, int slowDelay) {
+        super(uri);
+        mId = id;
+        mPattern = pattern;
+        mSlowDelay = slowDelay;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public boolean isSlow() {
+        return mSlowDelay > 0;
+    }
+
+    @Override
+    public synchronized void onOpen(ServerHandshake handshake) {
+        mTotals.connects++;
+        // Whatever was sent while disconnected is not the relay's loss
+        mSynced = false;
+        mLine.setLength(0);
+        mExpected.clear();
+    }
+
+    @Override
+    public void onMessage(String message) {
+        if (mSlowDelay > 0) {
+            try {
+                Thread.sleep(mSlowDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long now = System.nanoTime();
+        synchronized (this) {
+            mTotals.bytes += Utf8.encodedLength(message);
+            for (int i = 0; i < message.length(); i++) {
+                char c = message.charAt(i);
+                if (c != '\n') {
+                    if (mSynced) mLine.append(c);
+                    continue;
+                }
+                // The first line after connecting is usually cut
+                if (mSynced) onLine(now);
+                mSynced = true;
+                mLine.setLength(0);
+            }
+        }
+    }
+
+    private void onLine(long now) {
+        SoakRecord record = SoakRecord.parse(mPattern, mLine);
+        if (record == null || !record.intact) {
+            mTotals.corrupt++;
+            return;
+        }
+        mTotals.records++;
+        mLatency.record((now - record.nanoTime) / 1000);
+        Long expected = mExpected.get(record.source);
+        if (expected != null) {
+            if (record.seq > expected)
+                mTotals.lost += record.seq - expected;
+            else if (record.seq < expected)
+                mTotals.reordered++;
+        }
+        if (expected == null || record.seq >= expected)
+            mExpected.put(record.source, record.seq + 1);
+        mLastSeen.put(record.source, record.seq);
+    }
+
+    @Override
+    public synchronized void onMessage(ByteBuffer bytes) {
+        // Server events are JSON objects in binary frames
+        String event = StandardCharsets.UTF_8.decode(bytes).toString();
+        mTotals.events++;
+        if (event.contains("\"" + ClientEvents.WRITE_REJECTED + "\""))
+            mTotals.rejected++;
+    }
+
+    @Override
+    public synchronized void onClose(int code, String reason, boolean remote) {
+        if (mTotals.connects > 0)
+            mTotals.disconnects++;
+    }
+
+    @Override
+    public void onError(Exception ex) {
+        // onClose follows
+    }
+
+    // Writes the next echo record, returns its sequence number or -1 when not connected.
+    // Called from one thread only.
+    public long sendRecord() {
+        if (!isOpen()) return -1;
+        long seq;
+        synchronized (this) {
+            seq = mSentSeq;
+        }
+        try {
+            send(SoakRecord.format(mPattern, mId, seq, System.nanoTime()));
+        } catch (Exception e) {
+            return -1;
+        }
+        synchronized (this) {
+            mSentSeq = seq + 1;
+        }
+        return seq;
+    }
+
+    public synchronized long getSentSeq() {
+        return mSentSeq - 1;
+    }
+
+    // Last sequence number seen from the source, -1 if none
+    public synchronized long getLastSeen(int source) {
+        Long seq = mLastSeen.get(source);
+        return seq == null ? -1 : seq;
+    }
+
+    // Adds the totals to the given ones and moves the latencies since the last call to interval
+    public synchronized void collect(Totals totals, LatencyHistogram interval) {
+        totals.add(mTotals);
+        interval.add(mLatency);
+        mLatency.reset();
+    }
+}
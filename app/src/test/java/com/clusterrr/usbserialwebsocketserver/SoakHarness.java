@@ -0,0 +1,274 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Long running loopback test of the relay on the host JVM, no phone or adapter needed.
+// A simulated device feeds UsbSerialThread, WebSocketServerThread fans its data out to
+// simulated clients over real sockets, and writes go back through SerialWriteScheduler,
+// wired up the same way UsbSerialWebsocketService does it.
+//
+// ./gradlew :app:soakTest -Psoak.args="--pattern telemetry --baud 921600 --clients 8 --slow 2 --minutes 240"
+//
+// Prints a report line every interval and a summary at the end. Exits with 1 if nothing
+// was delivered, any client saw lost, reordered or corrupt records, or the heap kept growing.
+public class SoakHarness {
+    final static int WARMUP_INTERVALS = 2;
+    final static int MIN_HEAP_SAMPLES = 4;
+    final static int DRAIN_SECONDS = 10;
+
+    private SoakPattern mPattern = SoakPattern.LOGS;
+    private int mBaudRate = 115200;
+    private int mClientCount = 4;
+    private int mSlowCount = 1;
+    private int mSlowDelay = 20; // ms per message
+    private double mMinutes = 60;
+    private int mInterval = 60; // seconds
+    private int mFifoSize = 4096;
+    private int mBurstLines = 200;
+    private int mBurstPause = 500; // ms
+    private int mEchoRate = 20; // records per second per client
+    private int mPort = 0;
+    private double mLeakThreshold = 4; // MB per hour
+    private SerialRing.WaitStrategy mWaitStrategy = SerialRing.WaitStrategy.PARK;
+
+    private UsbSerialWebsocketService mService;
+    private SimulatedSerialPort mDevice;
+    private final List<SoakClient> mClients = new ArrayList<>();
+    private final SoakClient.Totals mLastTotals = new SoakClient.Totals();
+    private final LatencyHistogram mFastLatency = new LatencyHistogram();
+    private final LatencyHistogram mSlowLatency = new LatencyHistogram();
+    private final LatencyHistogram mFastIntervalLatency = new LatencyHistogram();
+    private final LatencyHistogram mSlowIntervalLatency = new LatencyHistogram();
+    private final List<double[]> mHeapSamples = new ArrayList<>(); // hours, MB
+    private long mStartTime;
+    private long mLastReport;
+    private int mIntervals = 0;
+
+    public static void main(String[] args) throws Exception {
+        SoakHarness harness = new SoakHarness();
+        harness.parseArgs(args);
+        System.exit(harness.run() ? 0 : 1);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--pattern": mPattern = SoakPattern.valueOf(value.toUpperCase()); break;
+                case "--baud": mBaudRate = Integer.parseInt(value); break;
+                case "--clients": mClientCount = Integer.parseInt(value); break;
+                case "--slow": mSlowCount = Integer.parseInt(value); break;
+                case "--slow-delay": mSlowDelay = Integer.parseInt(value); break;
+                case "--minutes": mMinutes = Double.parseDouble(value); break;
+                case "--interval": mInterval = Integer.parseInt(value); break;
+                case "--fifo": mFifoSize = Integer.parseInt(value); break;
+                case "--burst-lines": mBurstLines = Integer.parseInt(value); break;
+                case "--burst-pause": mBurstPause = Integer.parseInt(value); break;
+                case "--echo-rate": mEchoRate = Integer.parseInt(value); break;
+                case "--port": mPort = Integer.parseInt(value); break;
+                case "--leak-threshold": mLeakThreshold = Double.parseDouble(value); break;
+                case "--wait": mWaitStrategy = SerialRing.WaitStrategy.valueOf(value.toUpperCase()); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        mSlowCount = Math.min(mSlowCount, mClientCount);
+    }
+
+    private boolean run() throws Exception {
+        SerialFormat format = new SerialFormat(mBaudRate, 8, UsbSerialPort.STOPBITS_1, UsbSerialPort.PARITY_NONE);
+        mDevice = new SimulatedSerialPort(format, mPattern, mFifoSize, mBurstLines, mBurstPause);
+
+        mService = new UsbSerialWebsocketService();
+        mService.mSerialFormat = format;
+        mService.mUsbSerialThread = new UsbSerialThread(mService, mDevice.getPort());
+        mService.mUsbSerialThread.setWaitStrategy(mWaitStrategy);
+        mService.mUsbSerialThread.setPacing(format, 0, 0);
+        mService.mWriteScheduler = new SerialWriteScheduler(mService.mUsbSerialThread::write, format);
+        mService.mWebSocketServerThread = new WebSocketServerThread(mService, new InetSocketAddress("127.0.0.1", mPort));
+        mService.mWebSocketServerThread.setReuseAddr(true);
+        mService.mUsbSerialThread.start();
+        mService.mWriteScheduler.start();
+        mService.mWebSocketServerThread.start();
+        int port;
+        // -1 while the channel is open but not bound yet
+        while ((port = mService.mWebSocketServerThread.getPort()) <= 0)
+            Thread.sleep(10);
+
+        System.out.printf("Soak test: %s at %d baud (%d bytes/s), %d clients (%d slow, %d ms per message), %s minutes, port %d%n",
+                mPattern.name().toLowerCase(), mBaudRate, format.bytesPerSecond(), mClientCount, mSlowCount, mSlowDelay, value(mMinutes), port);
+
+        for (int i = 0; i < mClientCount; i++) {
+            // The slow ones are the last, ids start after the device's source id
+            boolean slow = i >= mClientCount - mSlowCount;
+            SoakClient client = new SoakClient(new URI("ws://127.0.0.1:" + port + "/"), i + 1, mPattern, slow ? mSlowDelay : 0);
+            client.setConnectionLostTimeout(0);
+            client.connectBlocking(10, TimeUnit.SECONDS);
+            mClients.add(client);
+        }
+        mDevice.start();
+
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        if (mPattern == SoakPattern.ECHO) {
+            long period = Math.max(1, 1_000_000L / Math.max(1, mEchoRate));
+            for (SoakClient client : mClients)
+                timer.scheduleAtFixedRate(client::sendRecord, period, period, TimeUnit.MICROSECONDS);
+        }
+
+        mStartTime = System.nanoTime();
+        mLastReport = mStartTime;
+        long end = mStartTime + (long) (mMinutes * 60e9);
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(mInterval), Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+            report();
+            reconnectClients();
+        }
+
+        // Let the fast clients catch up before the final numbers
+        timer.shutdownNow();
+        mDevice.stopGenerating();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(DRAIN_SECONDS));
+        report();
+        boolean passed = summary();
+
+        for (SoakClient client : mClients)
+            client.closeBlocking();
+        mService.mWriteScheduler.close();
+        mService.mWebSocketServerThread.close();
+        mService.mUsbSerialThread.close();
+        return passed;
+    }
+
+    // A slow client may get dropped by the server's ping timeout, that's counted and it comes back
+    private void reconnectClients() {
+        for (SoakClient client : mClients) {
+            if (client.isClosed())
+                client.reconnect();
+        }
+    }
+
+    private void report() {
+        mIntervals++;
+        SoakClient.Totals totals = new SoakClient.Totals();
+        long lag = 0;
+        long slowLag = 0;
+        for (SoakClient client : mClients) {
+            client.collect(totals, client.isSlow() ? mSlowIntervalLatency : mFastIntervalLatency);
+            long behind = behind(client);
+            if (client.isSlow()) slowLag = Math.max(slowLag, behind); else lag = Math.max(lag, behind);
+        }
+        long now = System.nanoTime();
+        double seconds = (now - mStartTime) / 1e9;
+        double intervalSeconds = Math.max(1e-3, (now - mLastReport) / 1e9);
+        mLastReport = now;
+        double heap = usedHeapMegabytes();
+        SerialRing ring = mService.mUsbSerialThread.getRing();
+        if (mIntervals > WARMUP_INTERVALS)
+            mHeapSamples.add(new double[]{seconds / 3600, heap});
+
+        System.out.printf("[%s] delivered %.1f KB/s, records %d, lost %d, reordered %d, corrupt %d, overruns %d, rejected %d, disconnects %d | "
+                        + "latency %s | slow %s | lag %d/%d records | heap %.1f MB%s | ring %d/%d bytes, dropped %d%n",
+                elapsed(seconds),
+                (totals.bytes - mLastTotals.bytes) / 1024.0 / intervalSeconds,
+                totals.records - mLastTotals.records,
+                totals.lost - mLastTotals.lost,
+                totals.reordered - mLastTotals.reordered,
+                totals.corrupt - mLastTotals.corrupt,
+                mDevice.getOverruns(),
+                totals.rejected - mLastTotals.rejected,
+                totals.disconnects - mLastTotals.disconnects,
+                percentiles(mFastIntervalLatency), percentiles(mSlowIntervalLatency),
+                lag, slowLag, heap, heapTrend(), ring.getHighWater(), ring.capacity(), ring.getDroppedBytes());
+
+        mFastLatency.add(mFastIntervalLatency);
+        mSlowLatency.add(mSlowIntervalLatency);
+        mFastIntervalLatency.reset();
+        mSlowIntervalLatency.reset();
+        mLastTotals.bytes = totals.bytes;
+        mLastTotals.records = totals.records;
+        mLastTotals.lost = totals.lost;
+        mLastTotals.reordered = totals.reordered;
+        mLastTotals.corrupt = totals.corrupt;
+        mLastTotals.rejected = totals.rejected;
+        mLastTotals.disconnects = totals.disconnects;
+    }
+
+    // Records the client still has to receive from the sources it listens to
+    private long behind(SoakClient client) {
+        if (mPattern != SoakPattern.ECHO)
+            return Math.max(0, mDevice.getLastSeq() - client.getLastSeen(SimulatedSerialPort.DEVICE_SOURCE));
+        long behind = 0;
+        for (SoakClient sender : mClients)
+            behind = Math.max(behind, sender.getSentSeq() - client.getLastSeen(sender.getId()));
+        return behind;
+    }
+
+    private boolean summary() {
+        double slope = heapSlope();
+        boolean leaking = !Double.isNaN(slope) && slope > mLeakThreshold;
+        boolean clean = mLastTotals.records > 0 && mLastTotals.lost == 0 && mLastTotals.reordered == 0 && mLastTotals.corrupt == 0;
+        System.out.printf("Summary: %d records delivered, %d lost, %d reordered, %d corrupt, %d device overruns, %d disconnects%n",
+                mLastTotals.records, mLastTotals.lost, mLastTotals.reordered, mLastTotals.corrupt, mDevice.getOverruns(), mLastTotals.disconnects);
+        SerialRing ring = mService.mUsbSerialThread.getRing();
+        System.out.printf("Serial: %d bytes read from the device, %d bytes written to it, %d dropped by the ring (%d of %d bytes used at most)%n",
+                mDevice.getBytesRead(), mDevice.getBytesWritten(), ring.getDroppedBytes(), ring.getHighWater(), ring.capacity());
+        System.out.printf("Latency: %s, max %.1f ms | slow clients: %s, max %.1f ms%n",
+                percentiles(mFastLatency), mFastLatency.getMax() / 1000.0,
+                percentiles(mSlowLatency), mSlowLatency.getMax() / 1000.0);
+        System.out.printf("Heap trend: %s%s%n", Double.isNaN(slope) ? "not enough samples" : String.format("%+.2f MB/h", slope),
+                leaking ? " - MEMORY GROWTH" : "");
+        System.out.println(clean && !leaking ? "PASSED" : "FAILED");
+        return clean && !leaking;
+    }
+
+    private static String percentiles(LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) return "-";
+        return String.format("p50 %.1f p99 %.1f p99.9 %.1f ms",
+                histogram.percentile(50) / 1000.0, histogram.percentile(99) / 1000.0, histogram.percentile(99.9) / 1000.0);
+    }
+
+    private static double usedHeapMegabytes() {
+        // Twice, so objects with finalizers or soft references don't skew the trend
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1024.0 / 1024.0;
+    }
+
+    private String heapTrend() {
+        double slope = heapSlope();
+        if (Double.isNaN(slope)) return "";
+        return String.format(" (%+.2f MB/h%s)", slope, slope > mLeakThreshold ? ", GROWING" : "");
+    }
+
+    // Least squares slope of the heap after GC over time, in MB per hour
+    private double heapSlope() {
+        int n = mHeapSamples.size();
+        if (n < MIN_HEAP_SAMPLES) return Double.NaN;
+        double sx = 0, sy = 0, sxx = 0, sxy = 0;
+        for (double[] sample : mHeapSamples) {
+            sx += sample[0];
+            sy += sample[1];
+            sxx += sample[0] * sample[0];
+            sxy += sample[0] * sample[1];
+        }
+        double d = n * sxx - sx * sx;
+        return d == 0 ? Double.NaN : (n * sxy - sx * sy) / d;
+    }
+
+    private static String value(double d) {
+        return d == Math.rint(d) ? Long.toString((long) d) : Double.toString(d);
+    }
+
+    private static String elapsed(double seconds) {
+        long s = (long) seconds;
+        return String.format("%02d:%02d:%02d", s / 3600, s / 60 % 60, s % 60);
+    }
+}
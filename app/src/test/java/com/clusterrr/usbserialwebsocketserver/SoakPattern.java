@@ -0,0 +1,10 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+public enum SoakPattern {
+    // Bursts of log lines at the full line rate with pauses in between
+    LOGS,
+    // Continuous fixed size records at the full line rate, full of multibyte characters
+    TELEMETRY,
+    // The device sends nothing by itself, it echoes what the clients write
+    ECHO
+}
@@ -0,0 +1,67 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import java.nio.charset.StandardCharsets;
+
+// One line of soak traffic: "#<source>:<seq>:<nanoTime>:<payload>\n".
+// The payload is a function of source and seq, so receivers can check it byte for byte.
+public class SoakRecord {
+    // Mix of 1, 2, 3 and 4 byte UTF-8 sequences, so reads and frames split characters
+    private final static String[] TELEMETRY_CHARS = {"0", "7", "A", "z", "é", "Ж", "€", "中", "😀", "𝄞"};
+    private final static int TELEMETRY_LENGTH = 24;
+
+    public final int source;
+    public final long seq;
+    public final long nanoTime;
+    public final boolean intact;
+
+    private SoakRecord(int source, long seq, long nanoTime, boolean intact) {
+        this.source = source;
+        this.seq = seq;
+        this.nanoTime = nanoTime;
+        this.intact = intact;
+    }
+
+    public static String payload(SoakPattern pattern, int source, long seq) {
+        if (pattern == SoakPattern.TELEMETRY) {
+            StringBuilder sb = new StringBuilder(TELEMETRY_LENGTH * 2);
+            for (int i = 0; i < TELEMETRY_LENGTH; i++)
+                sb.append(TELEMETRY_CHARS[(int) ((seq * 31 + i * 7 + source) % TELEMETRY_CHARS.length)]);
+            return sb.toString();
+        }
+        // Log lines of varying length
+        StringBuilder sb = new StringBuilder("INFO worker-").append(seq % 7)
+                .append(" processed item ").append(seq)
+                .append(" in ").append(seq % 997).append(" ms");
+        for (long i = seq % 5; i > 0; i--)
+            sb.append(" retry=").append(i);
+        return sb.toString();
+    }
+
+    public static byte[] encode(SoakPattern pattern, int source, long seq, long nanoTime) {
+        return format(pattern, source, seq, nanoTime).getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static String format(SoakPattern pattern, int source, long seq, long nanoTime) {
+        return "#" + source + ":" + seq + ":" + nanoTime + ":" + payload(pattern, source, seq) + "\n";
+    }
+
+    // line comes without the trailing '\n'. Returns null if it's not a record at all.
+    public static SoakRecord parse(SoakPattern pattern, CharSequence line) {
+        if (line.length() == 0 || line.charAt(0) != '#') return null;
+        int[] colons = new int[3];
+        int found = 0;
+        for (int i = 1; i < line.length() && found < 3; i++) {
+            if (line.charAt(i) == ':') colons[found++] = i;
+        }
+        if (found < 3) return null;
+        try {
+            int source = Integer.parseInt(line.subSequence(1, colons[0]).toString());
+            long seq = Long.parseLong(line.subSequence(colons[0] + 1, colons[1]).toString());
+            long nanoTime = Long.parseLong(line.subSequence(colons[1] + 1, colons[2]).toString());
+            String payload = line.subSequence(colons[2] + 1, line.length()).toString();
+            return new SoakRecord(source, seq, nanoTime, payload.equals(payload(pattern, source, seq)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.clusterrr.usbserialwebsocketserver;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Reference aggregator for the uplink mode, see UplinkThread for the protocol. Phones connect
+// out to it, the serial data of each device and channel is appended to its own file, and
+// lines typed as "<device> <channel> <text>" are written to that device's port.
+// What each channel received last is kept in memory, so a phone that reconnects resumes
+// where it left off, and whatever it could no longer replay is reported as lost.
+// A phone whose service restarted counts from 0 in a new stream, that one is taken from its start.
+//
+// ./gradlew :app:uplinkAggregator -Paggregator.args="--port 9000 --dir uplink"
+public class UplinkAggregator extends WebSocketServer {
+    final static int REPORT_INTERVAL = 10; // seconds
+
+    private static class Channel {
+        long mStream = -1;
+        long mNext = -1;
+        long mChunks = 0;
+        long mBytes = 0;
+        long mLost = 0;
+        long mDuplicates = 0;
+        OutputStream mOut;
+    }
+
+    private final File mDir;
+    // device id -> channel number -> state, kept across reconnects
+    private final Map<String, Map<Integer, Channel>> mDevices = new TreeMap<>();
+    private final Map<String, WebSocket> mConnections = new HashMap<>();
+    // Not the server itself, WebSocketServer.stop() holds that while it waits for the callbacks
+    private final Object mLock = new Object();
+
+    public UplinkAggregator(int port, File dir) {
+        super(new InetSocketAddress(port), Collections.singletonList(new Draft_6455(new PerMessageDeflateExtension())));
+        mDir = dir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = 9000;
+        File dir = new File("uplink");
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--dir":
+                    dir = new File(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: UplinkAggregator [--port 9000] [--dir uplink]");
+                    System.exit(2);
+            }
+        }
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can't create " + dir);
+        UplinkAggregator aggregator = new UplinkAggregator(port, dir);
+        aggregator.setReuseAddr(true);
+        aggregator.start();
+        Thread reporter = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(REPORT_INTERVAL * 1000L);
+                    aggregator.report();
+                }
+            } catch (InterruptedException e) {
+                // Exiting
+            }
+        });
+        reporter.setDaemon(true);
+        reporter.start();
+        aggregator.readCommands();
+        aggregator.stop();
+    }
+
+    @Override
+    public void onStart() {
+        System.out.println("Aggregator listening on " + getAddress() + ", writing to " + mDir.getAbsolutePath());
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        // Nothing until the hello
+    }
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        String device = conn.getAttachment();
+        if (device == null) return;
+        synchronized (mLock) {
+            if (mConnections.get(device) == conn)
+                mConnections.remove(device);
+        }
+        System.out.println(device + " disconnected: " + code + " " + reason);
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {
+        System.err.println("Error" + (conn != null ? " on " + conn.getRemoteSocketAddress() : "") + ": " + ex);
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, String message) {
+        try {
+            JSONObject json = new JSONObject(message);
+            if (json.has("hello")) {
+                synchronized (mLock) {
+                    hello(conn, json);
+                }
+            } else {
+                String device = conn.getAttachment();
+                System.out.println(device + ": " + message);
+            }
+        } catch (JSONException | IOException e) {
+            System.err.println("Bad message from " + conn.getRemoteSocketAddress() + ": " + e.getMessage());
+            conn.close();
+        }
+    }
+
+    private void hello(WebSocket conn, JSONObject json) throws JSONException, IOException {
+        String device = json.getString("hello");
+        conn.setAttachment(device);
+        WebSocket previous = mConnections.put(device, conn);
+        if (previous != null && previous != conn)
+            previous.close();
+        Map<Integer, Channel> channels = mDevices.computeIfAbsent(device, d -> new TreeMap<>());
+        JSONArray list = json.getJSONArray("channels");
+        JSONObject resume = new JSONObject();
+        JSONObject streams = new JSONObject();
+        for (int i = 0; i < list.length(); i++) {
+            JSONObject info = list.getJSONObject(i);
+            int number = info.getInt("channel");
+            long stream = info.optLong("stream", -1);
+            long next = info.optLong("next", -1);
+            Channel channel = channels.get(number);
+            if (channel == null) {
+                channel = new Channel();
+                channel.mOut = new FileOutputStream(new File(mDir, device + "-" + number + ".log"), true);
+                channels.put(number, channel);
+            } else if (channel.mNext >= 0 && (stream != channel.mStream || next < channel.mNext)) {
+                // The device restarted and numbers from 0 again, what the old stream didn't deliver is gone
+                System.out.println(device + " channel " + number + ": new stream " + stream + ", stream " + channel.mStream
+                        + " ended at seq " + channel.mNext + " with " + channel.mLost + " lost");
+                channel.mNext = info.optLong("first", 0);
+                channel.mLost = 0;
+            }
+            channel.mStream = stream;
+            resume.put(String.valueOf(number), channel.mNext);
+            streams.put(String.valueOf(number), stream);
+        }
+        System.out.println(device + " connected from " + conn.getRemoteSocketAddress() + ", resume " + resume);
+        conn.send(new JSONObject().put("resume", resume).put("streams", streams).toString());
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, ByteBuffer message) {
+        String device = conn.getAttachment();
+        if (device == null || message.remaining() < UplinkThread.FRAME_HEADER_SIZE) return;
+        int type = message.get() & 0xFF;
+        int number = message.getShort() & 0xFFFF;
+        synchronized (mLock) {
+            Channel channel = mDevices.get(device).get(number);
+            if (channel == null) return;
+            try {
+                if (type == UplinkThread.FRAME_DATA)
+                    data(channel, message);
+                else if (type == UplinkThread.FRAME_GAP)
+                    gap(device, number, channel, message);
+            } catch (IOException e) {
+                System.err.println("Can't write data of " + device + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void data(Channel channel, ByteBuffer message) throws IOException {
+        long seq = message.getLong();
+        if (channel.mNext >= 0 && seq > channel.mNext)
+            channel.mLost += seq - channel.mNext;
+        while (message.remaining() >= UplinkThread.CHUNK_HEADER_SIZE) {
+            message.getLong(); // timestamp
+            int len = message.getShort() & 0xFFFF;
+            if (channel.mNext >= 0 && seq < channel.mNext) {
+                // Already have it, the device replayed more than needed
+                channel.mDuplicates++;
+            } else {
+                channel.mOut.write(message.array(), message.arrayOffset() + message.position(), len);
+                channel.mChunks++;
+                channel.mBytes += len;
+                channel.mNext = seq + 1;
+            }
+            message.position(message.position() + len);
+            seq++;
+        }
+        channel.mOut.flush();
+    }
+
+    private void gap(String device, int number, Channel channel, ByteBuffer message) {
+        long from = message.getLong();
+        long to = message.getLong();
+        System.out.println(device + " channel " + number + ": seq " + from + " to " + to + " lost on the device");
+        channel.mLost += to - from + 1;
+        channel.mNext = Math.max(channel.mNext, to + 1);
+    }
+
+    private void report() {
+        synchronized (mLock) {
+            System.out.println(mConnections.size() + " of " + mDevices.size() + " devices connected");
+            for (Map.Entry<String, Map<Integer, Channel>> device : mDevices.entrySet()) {
+                for (Map.Entry<Integer, Channel> entry : device.getValue().entrySet()) {
+                    Channel channel = entry.getValue();
+                    System.out.printf("  %s/%d: %d chunks, %d bytes, next seq %d, %d lost, %d duplicates%n", device.getKey(), entry.getKey(),
+                            channel.mChunks, channel.mBytes, channel.mNext, channel.mLost, channel.mDuplicates);
+                }
+            }
+        }
+    }
+
+    // "<device> <channel> <text>" writes text and a newline to the port
+    private void readCommands() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] parts = line.split(" ", 3);
+            if (parts.length < 3) {
+                System.out.println("Usage: <device> <channel> <text>");
+                continue;
+            }
+            byte[] text = (parts[2] + "\n").getBytes(StandardCharsets.UTF_8);
+            synchronized (mLock) {
+                WebSocket conn = mConnections.get(parts[0]);
+                if (conn == null || !conn.isOpen()) {
+                    System.out.println(parts[0] + " is not connected");
+                    continue;
+                }
+                ByteBuffer frame = ByteBuffer.allocate(UplinkThread.FRAME_HEADER_SIZE + text.length);
+                frame.put((byte) UplinkThread.FRAME_WRITE).putShort((short) Integer.parseInt(parts[1])).put(text).flip();
+                conn.send(frame);
+            }
+        }
+    }
+}